@@ -0,0 +1,46 @@
+package hu.mentlerd.hybrid;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A Java function for blocking work, (Like queries, or file reads) called from the
+ * coroutines of a {@link Scheduler}. The work runs on the executor while the calling
+ * coroutine is suspended, so the thread of the scheduler keeps running the others.
+ *
+ * The calling coroutine receives the values returned by {@link #callAsync}, or nil,
+ * and the error message if it throws.
+ */
+public abstract class AsyncCallable implements Callable {
+
+	protected final Scheduler scheduler;
+	protected final Executor executor;
+
+	public AsyncCallable( Scheduler scheduler, Executor executor ){
+		this.scheduler	= scheduler;
+		this.executor	= executor;
+	}
+
+	public final int call( CallFrame frame, int argCount ){
+		final Object[] args = new Object[argCount];
+
+		for ( int index = 0; index < argCount; index++ )
+			args[index] = frame.get(index);
+
+		scheduler.park(frame, executor, new java.util.concurrent.Callable<Object[]>(){
+			public Object[] call() throws Exception {
+				return callAsync(args);
+			}
+		});
+
+		return 0;
+	}
+
+	/**
+	 * Runs on a thread of the executor: Only the arguments, and thread safe objects
+	 * may be used here, the Lua state belongs to the thread of the scheduler.
+	 *
+	 * @return The values to resume the coroutine with, or null for none
+	 */
+	protected abstract Object[] callAsync( Object[] args ) throws Exception;
+
+}
@@ -0,0 +1,70 @@
+package hu.mentlerd.hybrid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe, least recently used cache with a fixed capacity. Used to keep
+ * compiled forms of frequently used values, (Like string patterns) which are cheap
+ * to recreate, but expensive to create on every call.
+ */
+public class BoundedCache<K, V> {
+
+	protected final Map<K, V> entries;
+	protected final int capacity;
+
+	protected long hits;
+	protected long misses;
+
+	public BoundedCache( final int capacity ){
+		this.capacity	= capacity;
+		this.entries	= new LinkedHashMap<K, V>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry( Map.Entry<K, V> eldest ){
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached value, or null on a miss
+	 */
+	public synchronized V get( K key ){
+		V value = entries.get(key);
+
+		if ( value == null )
+			misses++;
+		else
+			hits++;
+
+		return value;
+	}
+
+	public synchronized void put( K key, V value ){
+		entries.put(key, value);
+	}
+
+	public synchronized void clear(){
+		entries.clear();
+	}
+
+	public synchronized int size(){
+		return entries.size();
+	}
+	public int getCapacity(){
+		return capacity;
+	}
+
+	public synchronized long getHits(){
+		return hits;
+	}
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	public synchronized String toString(){
+		return "BoundedCache[size=" + entries.size() + "/" + capacity + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+
+}
@@ -7,6 +7,9 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class BytecodeManager {
 
@@ -24,6 +27,9 @@ public class BytecodeManager {
 		return read(stream.read(), stream);
 	}
 	public static Prototype read( int first, InputStream stream ) throws IOException{
+		return read(first, stream, null);
+	}
+	public static Prototype read( int first, InputStream stream, StringPool pool ) throws IOException{
 		DataInputStream input = new DataInputStream(stream);
 		
 		//Check signature
@@ -43,7 +49,10 @@ public class BytecodeManager {
 		if ( FORMAT != input.read() )
 			throw new LuaException("Unexpected format type!");
 		
-		return new BytecodeManager(input).load();
+		BytecodeManager loader = new BytecodeManager(input);
+			loader.pool = pool;
+		
+		return loader.load();
 	}
 	
 	public static void write( OutputStream stream, Prototype proto ) throws IOException{
@@ -68,7 +77,37 @@ public class BytecodeManager {
 		dump(output, proto);
 	}
 
+	/**
+	 * Hashes the bytecode of the prototype, including the prototypes declared in it
+	 * 
+	 * @return The SHA-1 hash of the bytes written by {@link #write}
+	 */
+	public static byte[] hash( Prototype proto ){
+		MessageDigest digest;
+		
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch ( NoSuchAlgorithmException err ){
+			throw new RuntimeException(err); //Required to be present on every platform
+		}
+		
+		OutputStream discard = new OutputStream(){
+			public void write( int value ){}
+			public void write( byte[] buffer, int offset, int length ){}
+		};
+		
+		try {
+			write( new DigestOutputStream(discard, digest), proto );
+		} catch ( IOException err ){
+			throw new RuntimeException(err); //Never thrown by the streams above
+		}
+		
+		return digest.digest();
+	}
+
 	private static void dump( DataOutputStream stream, Prototype proto ) throws IOException{
+		proto.load(); //Compile deferred functions before dumping
+		
 		dump(stream, proto.source);
 		
 		stream.writeInt(0);	//linedefined
@@ -146,12 +185,16 @@ public class BytecodeManager {
 		for ( int index = 0; index < length; index++ )
 			dump(stream, proto.upvalues[index]);
 	}
+	/**
+	 * Strings are written as a size_t length including the terminating zero, then the
+	 * bytes. A missing string is a length of 0, the full 4 bytes the header declares.
+	 */
 	private static void dump( DataOutputStream stream, String string ) throws IOException{
 		if ( string == null ){
-			stream.writeShort(0);
+			stream.writeInt(0);
 			return;
 		}
-		byte[] buffer = string.getBytes();
+		byte[] buffer = string.getBytes(LuaString.UTF8); //Independent of the platform charset
 		
 		stream.writeInt( buffer.length +1 );
 		stream.write( buffer );
@@ -168,6 +211,8 @@ public class BytecodeManager {
 	
 	protected boolean isLittleEndian;
 	
+	protected StringPool pool;
+	
 	protected BytecodeManager( DataInputStream stream ) throws IOException{
 		this.stream = stream;
 	
@@ -199,12 +244,22 @@ public class BytecodeManager {
 	protected String readLuaString() throws IOException{
 		int len = readInt();
 		
+		if ( len == 0 ) //Null string
+			return null;
+		
+		loaderAssert( len > 0, "String size" );
+		
 		byte[] buffer = new byte[len -1];
 		
-		stream.read(buffer);
+		stream.readFully(buffer);
 		stream.read();	
 		
-		return new String(buffer);
+		String string = new String(buffer, LuaString.UTF8);
+		
+		if ( pool != null )
+			return pool.intern(string);
+		
+		return string;
 	}
 		
 	public Prototype load() throws IOException{
@@ -246,7 +301,7 @@ public class BytecodeManager {
 					break;
 				
 				case TYPE_NUMBER:
-					value = Double.longBitsToDouble( readLong() );
+					value = LuaUtil.box( Double.longBitsToDouble( readLong() ) );
 					break;
 				
 				case TYPE_STRING:
@@ -300,6 +355,9 @@ public class BytecodeManager {
 		proto.locals	= locals;
 		proto.upvalues	= upvalues;
 		
+		//Reject malformed code before anything runs it
+		BytecodeVerifier.verify(proto);
+		
 		return proto;
 	}
 	
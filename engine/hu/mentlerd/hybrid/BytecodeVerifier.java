@@ -0,0 +1,434 @@
+package hu.mentlerd.hybrid;
+
+import static hu.mentlerd.hybrid.LuaOpcodes.*;
+
+/**
+ * Checks the code of a prototype before it is run, similar to luaG_checkcode of the
+ * reference implementation. A verified prototype is guaranteed to:
+ *
+ *  - Only address registers below maxStacksize, and only existing constants,
+ *    upvalues and prototypes
+ *  - Only jump to instructions, (Not into the middle of SETLIST or CLOSURE) and end
+ *    with a RETURN
+ *  - Consume open results (multret calls, varargs) right away
+ *  - Only enter numeric for loops through their FORPREP, and leave their control
+ *    registers alone inside the body
+ *
+ * The interpreter skips the per instruction safety checks for verified prototypes.
+ * (See {@link CallFrame#set})
+ */
+public final class BytecodeVerifier {
+
+	public static final int MAX_STACK_SIZE	= 250;
+
+	private static final int OP_COUNT		= OP_VARARG +1;
+	private static final int NO_REG			= -1;
+	private static final int ALL_REGS		= Integer.MAX_VALUE;
+
+	/**
+	 * Verifies the code of a single prototype, marking it as verified. Enclosed
+	 * prototypes are not checked, as they are verified once they are loaded.
+	 *
+	 * @throws LuaException If the code is malformed
+	 */
+	public static void verify( Prototype proto ){
+		new BytecodeVerifier(proto).verify();
+
+		proto.verified = true;
+	}
+
+	private final Prototype proto;
+	private final int[] code;
+
+	private final int length;
+	private final int stackSize;
+
+	private int pc;
+
+	//Instructions that are arguments of the preceding opcode, (Not valid jump targets)
+	private boolean[] isArgument;
+
+	private BytecodeVerifier( Prototype proto ){
+		this.proto	= proto;
+		this.code	= proto.code;
+
+		this.length		= ( code == null ? 0 : code.length );
+		this.stackSize	= proto.maxStacksize;
+	}
+
+	private void check( boolean isOK, String message ){
+		if ( !isOK )
+			throw new LuaException(proto.source + ": broken bytecode at " + pc + " (" + message + ")");
+	}
+
+	private void checkReg( int reg ){
+		check( reg < stackSize, "register out of range" );
+	}
+	private void checkRK( int rk ){
+		if ( rk >= 256 ){
+			check( rk - 256 < proto.constants.length, "constant out of range" );
+		} else {
+			checkReg(rk);
+		}
+	}
+	private void checkOpen( int next ){
+		check( next < length, "open results at the end of the code" );
+
+		int op = code[next];
+		switch( getOp(op) ){
+			case OP_CALL:
+			case OP_TAILCALL:
+			case OP_RETURN:
+				break;
+
+			case OP_SETLIST:
+				check( getB9(op) == 0, "open results not consumed" );
+				break;
+
+			default:
+				check( false, "open results not consumed" );
+		}
+	}
+	private int checkJump( int offset ){
+		int target = pc +1 + offset;
+
+		check( 0 <= target && target < length, "jump out of range" );
+		return target;
+	}
+	private void checkNextIsJump(){
+		check( pc +1 < length && getOp(code[pc +1]) == OP_JMP, "missing jump after condition" );
+	}
+
+	private void verify(){
+		check( length > 0, "empty code" );
+		check( stackSize <= MAX_STACK_SIZE, "stack too big" );
+		check( proto.numParams <= stackSize, "too many parameters" );
+
+		check( proto.constants != null && proto.prototypes != null, "missing constants" );
+
+		isArgument = new boolean[length];
+
+		for ( pc = 0; pc < length; pc++ ){
+			if ( isArgument[pc] )
+				continue;
+
+			verifyInstruction( code[pc] );
+		}
+
+		pc = length -1;
+		check( getOp(code[pc]) == OP_RETURN, "missing final return" );
+
+		verifyJumps();
+		verifyLoops();
+	}
+
+	private void verifyInstruction( int op ){
+		int inst = getOp(op);
+
+		int A = getA8(op);
+		int B = getB9(op);
+		int C = getC9(op);
+
+		check( inst < OP_COUNT, "unknown opcode " + inst );
+
+		if ( inst != OP_JMP && inst != OP_EQ && inst != OP_LT && inst != OP_LE && inst != OP_CLOSE )
+			checkReg(A);
+
+		switch( inst ){
+			case OP_MOVE:
+			case OP_UNM:
+			case OP_NOT:
+			case OP_LEN:
+			case OP_LOADNIL:
+				checkReg(B);
+				break;
+
+			case OP_LOADK:
+				check( getBx(op) < proto.constants.length, "constant out of range" );
+				break;
+
+			case OP_LOADBOOL:
+				if ( C != 0 )
+					check( pc +2 < length, "skip out of range" );
+				break;
+
+			case OP_GETUPVAL:
+			case OP_SETUPVAL:
+				check( B < proto.numUpvalues, "upvalue out of range" );
+				break;
+
+			case OP_GETGLOBAL:
+			case OP_SETGLOBAL: {
+				int index = getBx(op);
+
+				check( index < proto.constants.length, "constant out of range" );
+				check( proto.constants[index] instanceof String, "global name is not a string" );
+				break;
+			}
+
+			case OP_GETTABLE:
+				checkReg(B);
+				checkRK(C);
+				break;
+
+			case OP_SELF:
+				checkReg(A +1);
+				checkReg(B);
+				checkRK(C);
+				break;
+
+			case OP_SETTABLE:
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+				checkRK(B);
+				checkRK(C);
+				break;
+
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				checkRK(B);
+				checkRK(C);
+				checkNextIsJump();
+				break;
+
+			case OP_NEWTABLE:
+				break;
+
+			case OP_CONCAT:
+				check( B < C, "empty concatenation" );
+				checkReg(C);
+				break;
+
+			case OP_TEST:
+				checkNextIsJump();
+				break;
+
+			case OP_TESTSET:
+				checkReg(B);
+				checkNextIsJump();
+				break;
+
+			case OP_JMP:
+			case OP_FORLOOP:
+			case OP_FORPREP:
+				checkJump( getSBx(op) );
+
+				if ( inst != OP_JMP )
+					checkReg(A +3);
+				break;
+
+			case OP_CALL:
+				if ( B != 0 )
+					checkReg(A + B -1);
+
+				if ( C == 0 ){
+					checkOpen(pc +1);
+				} else if ( C > 1 ){
+					checkReg(A + C -2);
+				}
+				break;
+
+			case OP_TAILCALL:
+				if ( B != 0 )
+					checkReg(A + B -1);
+
+				check( pc +1 < length && getOp(code[pc +1]) == OP_RETURN, "missing return after tail call" );
+				break;
+
+			case OP_RETURN:
+				if ( B > 1 )
+					checkReg(A + B -2);
+				break;
+
+			case OP_TFORLOOP:
+				check( C >= 1, "missing loop variables" );
+				checkReg(A +2 + C);
+				checkNextIsJump();
+				break;
+
+			case OP_SETLIST:
+				if ( B > 0 )
+					checkReg(A + B);
+
+				if ( C == 0 ){ //The batch index is stored as the next instruction
+					check( pc +1 < length -1, "missing setlist batch" );
+					isArgument[pc +1] = true;
+				}
+				break;
+
+			case OP_CLOSE:
+				check( A <= stackSize, "register out of range" );
+				break;
+
+			case OP_CLOSURE: {
+				int index = getBx(op);
+				check( index < proto.prototypes.length, "prototype out of range" );
+
+				int upvalues = proto.prototypes[index].numUpvalues;
+				check( pc + upvalues < length, "missing upvalue descriptions" );
+
+				for ( int offset = 1; offset <= upvalues; offset++ ){ //Upvalue descriptions
+					int desc = code[pc + offset];
+
+					switch( getOp(desc) ){
+						case OP_MOVE:		checkReg( getB9(desc) );	break;
+						case OP_GETUPVAL:	check( getB9(desc) < proto.numUpvalues, "upvalue out of range" );	break;
+
+						default:
+							check( false, "invalid upvalue description" );
+					}
+
+					isArgument[pc + offset] = true;
+				}
+				break;
+			}
+
+			case OP_VARARG:
+				check( proto.isVararg, "vararg in a fixed argument function" );
+
+				if ( B == 0 ){
+					checkOpen(pc +1);
+				} else {
+					checkReg(A + B -2);
+				}
+				break;
+		}
+	}
+
+	/*
+	 * Control flow
+	 */
+	private int getJumpTarget( int pc ){
+		if ( isArgument[pc] )
+			return -1;
+
+		int op = code[pc];
+
+		switch( getOp(op) ){
+			case OP_JMP:
+			case OP_FORLOOP:
+			case OP_FORPREP:
+				return pc +1 + getSBx(op);
+
+			case OP_LOADBOOL:
+				return getC9(op) != 0 ? pc +2 : -1;
+
+			default:
+				return -1;
+		}
+	}
+
+	private void verifyJumps(){
+		for ( pc = 0; pc < length; pc++ ){
+			int target = getJumpTarget(pc);
+
+			if ( target != -1 )
+				check( !isArgument[target], "jump into an argument" );
+		}
+	}
+
+	/**
+	 * Returns the lowest, and the highest register an instruction may write to, or
+	 * NO_REG if it does not write registers.
+	 */
+	private long getWrittenRange( int op ){
+		int A = getA8(op);
+		int high;
+
+		switch( getOp(op) ){
+			case OP_MOVE: case OP_LOADK: case OP_LOADBOOL: case OP_GETUPVAL:
+			case OP_GETGLOBAL: case OP_GETTABLE: case OP_NEWTABLE:
+			case OP_ADD: case OP_SUB: case OP_MUL: case OP_DIV: case OP_MOD: case OP_POW:
+			case OP_UNM: case OP_NOT: case OP_LEN: case OP_CONCAT:
+			case OP_TESTSET: case OP_CLOSURE: case OP_FORPREP:
+				high = A;
+				break;
+
+			case OP_LOADNIL:	high = getB9(op);	break;
+			case OP_SELF:		high = A +1;		break;
+
+			case OP_TFORLOOP:
+				A	+= 2;
+				high = ALL_REGS;
+				break;
+
+			case OP_CALL:
+			case OP_TAILCALL:
+			case OP_FORLOOP: //Clears the rest of the stack on exit
+			case OP_VARARG:
+				high = ALL_REGS;
+				break;
+
+			default:
+				return NO_REG;
+		}
+
+		return ((long) A << 32) | high;
+	}
+
+	private void verifyLoops(){
+		//Innermost numeric loop for each instruction (Index of the FORPREP)
+		int[] loopOf = new int[length];
+
+		int[] loops	= new int[length];
+		int depth	= 0;
+
+		for ( pc = 0; pc < length; pc++ ){
+			while( depth > 0 && pc > getJumpTarget(loops[depth -1]) )
+				depth--; //Left the loop
+
+			loopOf[pc] = ( depth > 0 ? loops[depth -1] : -1 );
+
+			int op = code[pc];
+			if ( isArgument[pc] || getOp(op) != OP_FORPREP )
+				continue;
+
+			int end = getJumpTarget(pc);
+			int A	= getA8(op);
+
+			check( end > pc, "backward for preparation" );
+			check( getOp(code[end]) == OP_FORLOOP && getA8(code[end]) == A, "for preparation without a loop" );
+			check( getJumpTarget(end) == pc +1, "for loop without a preparation" );
+
+			if ( depth > 0 )
+				check( end <= getJumpTarget(loops[depth -1]), "overlapping for loops" );
+
+			//The control registers are only modified by the loop itself
+			for ( int index = pc +1; index < end; index++ ){
+				if ( isArgument[index] )
+					continue;
+
+				long range = getWrittenRange(code[index]);
+
+				if ( range != NO_REG ){
+					int low		= (int) (range >>> 32);
+					int high	= (int) range;
+
+					check( high < A || low > A +2, "for loop control modified" );
+				}
+			}
+
+			loops[depth++] = pc;
+		}
+
+		//Loops can only be entered through their preparation
+		for ( pc = 0; pc < length; pc++ ){
+			int target = getJumpTarget(pc);
+
+			if ( target == -1 )
+				continue;
+
+			int loop = loopOf[target];
+			if ( loop == -1 || loop == pc )
+				continue;
+
+			check( pc > loop && pc <= getJumpTarget(loop), "jump into a for loop" );
+		}
+	}
+
+}
@@ -2,7 +2,7 @@ package hu.mentlerd.hybrid;
 
 public class CallFrame{
 	
-	public final Coroutine coroutine;
+	public Coroutine coroutine; //Changes only when the frame is reused by a new coroutine
 	
 	public LuaClosure closure;
 	public Callable function;
@@ -19,6 +19,18 @@ public class CallFrame{
 	
 	public boolean canYield;
 	
+	//Java frames waiting for a function called with LuaThread.callk
+	protected Continuation continuation;
+	protected int continuationBase;
+	
+	//Lua frames waiting for a metamethod, or an iterator called in the loop
+	protected int pending;
+	protected int pendingArg;
+	protected boolean pendingNot;
+	
+	//Running verified code, registers can be written without checking the top
+	protected boolean verified;
+	
 	protected CallFrame( Coroutine coroutine ){
 		this.coroutine	= coroutine;
 	}
@@ -26,6 +38,12 @@ public class CallFrame{
 	public void setup( LuaClosure closure, int localBase, int returnBase, int argCount ){
 		this.closure	= closure;
 		this.function	= null;
+		this.verified	= false;
+		
+		this.restoreTop		= false;
+		this.continuation	= null;
+		this.pending		= 0;
+		this.pendingNot		= false;
 		
 		this.localBase	= localBase;
 		this.returnBase = returnBase;
@@ -38,6 +56,11 @@ public class CallFrame{
 		if ( closure != null ){
 			Prototype proto = closure.proto;
 			
+			if ( !proto.isLoaded() ) //Lazily compiled function, first call
+				proto.load();
+			
+			verified = proto.verified;
+			
 			if ( proto.isVararg ){
 				localBase += argCount;
 			
@@ -54,7 +77,7 @@ public class CallFrame{
 	 * Stack
 	 */
 	public void set( int index, Object value ){
-		if ( getTop() <= index )
+		if ( !verified && getTop() <= index )
 			throw new RuntimeException("Script ignored top!");
 		
 		coroutine.stack[localBase + index] = value;
@@ -94,7 +117,10 @@ public class CallFrame{
 		set(top, value);
 	}
 	public void push( int value ){
-		push( Double.valueOf(value) );
+		push( LuaUtil.box(value) );
+	}
+	public void push( double value ){
+		push( LuaUtil.box(value) );
 	}
 	
 	
@@ -197,32 +223,52 @@ public class CallFrame{
 		if ( argCount <= n )
 			throw new LuaException("bad argument to #" + n + " (value expected)");
 		
-		return get(n);
+		return LuaRope.flatten( get(n) );
 	}
 	
 	public Object getArgNull(int n){
 		if ( argCount <= n )
 			return null;
 		
-		return get(n);
+		return LuaRope.flatten( get(n) );
 	}
 	
 	public Object getArg(int n, Object fallback) {
 		if ( argCount <= n )
 			return fallback;
 		
-		Object arg = get(n);
+		Object arg = LuaRope.flatten( get(n) );
 		if ( arg == null )
 			arg = fallback;
 		
 		return arg;
 	}
 
+	/**
+	 * Converts between the two string representations when the other one is expected
+	 */
+	protected static Object coerce( Object arg, Class<?> clazz ){
+		if ( clazz == String.class && ( arg instanceof LuaString || arg instanceof LuaRope ) )
+			return arg.toString();
+		
+		arg = LuaRope.flatten(arg); //Java only sees flat strings
+		
+		if ( clazz == LuaString.class && arg instanceof String ){
+			try {
+				return LuaString.valueOf((String) arg);
+			} catch ( IllegalArgumentException err ){
+				return arg; //Not a byte string, fail the type check
+			}
+		}
+		
+		return arg;
+	}
+	
 	public <T> T getArg(int n, Class<T> clazz) {
 		if ( argCount <= n )
 			throw LuaUtil.argError(n, clazz, coroutine.platform);
 		
-		Object arg = get(n);
+		Object arg = coerce(get(n), clazz);
 		if ( arg == null || !clazz.isAssignableFrom( arg.getClass() ) )
 			throw LuaUtil.argError(n, clazz, arg, coroutine.platform);
 			
@@ -233,7 +279,7 @@ public class CallFrame{
 		if ( argCount <= n )
 			return null;
 		
-		Object arg = get(n);
+		Object arg = coerce(get(n), clazz);
 		if ( arg != null && !clazz.isAssignableFrom( arg.getClass() ) )
 			throw LuaUtil.argError(n, clazz, arg, coroutine.platform);
 		
@@ -244,7 +290,7 @@ public class CallFrame{
 		if ( argCount <= n )
 			throw LuaUtil.argError(n, clazz, coroutine.platform);
 		
-		Object arg = get(n);
+		Object arg = coerce(get(n), clazz);
 		
 		if ( arg == null )
 			return fallback;
@@ -267,7 +313,7 @@ public class CallFrame{
 		return number.intValue();
 	}
 	public int getIntArg(int n, int fallback){
-		if ( argCount <= n )
+		if ( argCount <= n || get(n) == null ) //Optional arguments may be skipped with nil
 			return fallback;
 	
 		Double number = getArg(n, Double.class);
@@ -282,7 +328,7 @@ public class CallFrame{
 		if ( argCount <= n )
 			throw LuaUtil.argError(slot, clazz, coroutine.platform);
 		
-		Object arg = get(n);
+		Object arg = coerce(get(n), clazz);
 		if ( arg == null || !clazz.isAssignableFrom( arg.getClass() ) )
 			throw LuaUtil.argError(slot, clazz, arg, coroutine.platform);
 			
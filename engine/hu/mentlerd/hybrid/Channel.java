@@ -0,0 +1,293 @@
+package hu.mentlerd.hybrid;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A bounded queue of values between LuaThreads, any number of threads may send to it,
+ * and receive from it. (See the channel library)
+ *
+ * Values are copied as they are sent, so threads never share a mutable table: Tables
+ * are deep copied, except frozen ones (See {@link LuaTable#freeze()}) which are checked,
+ * and passed as they are. Lua functions, and coroutines can not be sent, not even in
+ * frozen tables.
+ *
+ * Senders wait while the channel is full, and receivers while it is empty. Blocking
+ * the thread, or when called from a scheduled coroutine, suspending only the coroutine.
+ */
+public class Channel {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	protected static class Sender {
+		protected final Scheduler.Ticket ticket;
+		protected final Object value;
+
+		protected Sender( Scheduler.Ticket ticket, Object value ){
+			this.ticket	= ticket;
+			this.value	= value;
+		}
+	}
+
+	protected final int capacity;
+
+	protected final ArrayDeque<Object> buffer = new ArrayDeque<Object>();
+
+	//Scheduled coroutines waiting for a value, or for space
+	protected final ArrayDeque<Scheduler.Ticket> receivers	= new ArrayDeque<Scheduler.Ticket>();
+	protected final ArrayDeque<Sender> senders				= new ArrayDeque<Sender>();
+
+	protected boolean closed;
+
+	public Channel(){
+		this(DEFAULT_CAPACITY);
+	}
+	public Channel( int capacity ){
+		if ( capacity < 1 )
+			throw new IllegalArgumentException("Illegal channel capacity");
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Copies a value to be sent to another thread
+	 */
+	public static Object copy( Object value ){
+		return copy(value, null);
+	}
+
+	protected static Object copy( Object value, Map<LuaTable, LuaTable> copies ){
+		if ( value == null || value instanceof Boolean || value instanceof Double )
+			return value;
+
+		if ( value instanceof String || value instanceof LuaString )
+			return value;
+
+		if ( value instanceof LuaRope ) //Flattened lazily, not safe to share
+			return value.toString();
+
+		if ( value instanceof Channel || value instanceof Callable )
+			return value;
+
+		if ( value instanceof LuaTable ){
+			LuaTable table = (LuaTable) value;
+
+			if ( copies == null )
+				copies = new IdentityHashMap<LuaTable, LuaTable>();
+
+			LuaTable copy = copies.get(table);
+
+			if ( copy == null && table.isFrozen() ){ //Shared, only checked
+				copies.put(table, table);
+
+				copy( table.getMetatable(), copies );
+
+				for ( Object key : table ){
+					copy(key, copies);
+					copy(table.rawget(key), copies);
+				}
+
+				return table;
+			}
+
+			if ( copy == null ){
+				copies.put(table, copy = new LuaTable());
+
+				copy.setMetatable( (LuaTable) copy(table.getMetatable(), copies) );
+
+				for ( Object key : table )
+					copy.rawset( copy(key, copies), copy(table.rawget(key), copies) );
+			}
+
+			return copy;
+		}
+
+		if ( value instanceof LuaClosure )
+			throw new LuaException("cannot send a Lua function");
+
+		if ( value instanceof Coroutine )
+			throw new LuaException("cannot send a coroutine");
+
+		throw new LuaException("cannot send a value of " + value.getClass().getSimpleName());
+	}
+
+	protected static void checkValue( Object value ){
+		if ( value == null )
+			throw new LuaException("cannot send nil");
+	}
+
+	/*
+	 * Non blocking
+	 */
+
+	/**
+	 * Sends the value, if there is space for it
+	 *
+	 * @return False if the channel is full, or closed
+	 */
+	public boolean offer( Object value ){
+		checkValue(value);
+
+		return offerCopy( copy(value) );
+	}
+
+	protected synchronized boolean offerCopy( Object value ){
+		if ( closed )
+			return false;
+
+		Scheduler.Ticket receiver = receivers.poll();
+
+		if ( receiver != null ){ //Hand over directly
+			receiver.wake(value);
+			return true;
+		}
+
+		if ( buffer.size() >= capacity )
+			return false;
+
+		buffer.add(value);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * @return The next value, or null if the channel is empty
+	 */
+	public synchronized Object poll(){
+		Object value = buffer.poll();
+
+		if ( value != null ){
+			Sender sender = senders.poll();
+
+			if ( sender != null ){ //Move a waiting value to the freed space
+				buffer.add(sender.value);
+				sender.ticket.wake(Boolean.TRUE);
+			}
+
+			notifyAll();
+		}
+
+		return value;
+	}
+
+	/*
+	 * Blocking the thread
+	 */
+
+	/**
+	 * Sends the value, waiting for space if the channel is full
+	 *
+	 * @return False if the channel is closed
+	 */
+	public boolean put( Object value ) throws InterruptedException{
+		checkValue(value);
+
+		Object copy = copy(value);
+
+		synchronized( this ){
+			while ( !offerCopy(copy) ){
+				if ( closed )
+					return false;
+
+				wait();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Receives a value, waiting for one if the channel is empty
+	 *
+	 * @return The value, or null if the channel is closed, and empty
+	 */
+	public synchronized Object take() throws InterruptedException{
+		Object value;
+
+		while ( ( value = poll() ) == null ){
+			if ( closed )
+				return null;
+
+			wait();
+		}
+
+		return value;
+	}
+
+	/*
+	 * Suspending a scheduled coroutine
+	 */
+
+	/**
+	 * Sends the value, suspending the coroutine while the channel is full. The result,
+	 * false if the channel was closed, true otherwise is returned to the coroutine.
+	 *
+	 * @return The count of values pushed to the frame, 0 if the coroutine was suspended
+	 */
+	public int send( CallFrame frame, Scheduler scheduler, Object value ){
+		checkValue(value);
+
+		Object copy = copy(value);
+
+		synchronized( this ){
+			if ( closed || offerCopy(copy) ){
+				frame.push( !closed );
+				return 1;
+			}
+
+			senders.add( new Sender(scheduler.park(frame), copy) );
+			return 0;
+		}
+	}
+
+	/**
+	 * Receives a value, suspending the coroutine while the channel is empty. The value,
+	 * or nil if the channel is closed is returned to the coroutine.
+	 *
+	 * @return The count of values pushed to the frame, 0 if the coroutine was suspended
+	 */
+	public synchronized int receive( CallFrame frame, Scheduler scheduler ){
+		Object value = poll();
+
+		if ( value != null || closed ){
+			frame.push(value);
+			return 1;
+		}
+
+		receivers.add( scheduler.park(frame) );
+		return 0;
+	}
+
+	/**
+	 * Closes the channel: Sending fails from now on, and once the buffered values are
+	 * received, so does receiving. Waiting senders, and receivers are released.
+	 */
+	public synchronized void close(){
+		if ( closed ) return;
+
+		closed = true;
+
+		for ( Scheduler.Ticket receiver : receivers )
+			receiver.wake( new Object[1] );
+
+		for ( Sender sender : senders )
+			sender.ticket.wake(Boolean.FALSE);
+
+		receivers.clear();
+		senders.clear();
+
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed(){
+		return closed;
+	}
+
+	public synchronized int size(){
+		return buffer.size();
+	}
+	public int getCapacity(){
+		return capacity;
+	}
+}
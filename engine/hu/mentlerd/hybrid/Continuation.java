@@ -0,0 +1,25 @@
+package hu.mentlerd.hybrid;
+
+/**
+ * The rest of a Java function, which called a Lua function with {@link LuaThread#callk}
+ * instead of nesting the call. The Java function returns right away, and the called
+ * function runs in the loop of the thread, so it can yield, and the thread can keep
+ * switching coroutines until the results are in.
+ *
+ * Both methods work like {@link Callable#call}: They return the count of values
+ * returned from the top of the frame, or may call callk again.
+ */
+public interface Continuation {
+
+	/**
+	 * Called with the values returned by the function on the top of the frame
+	 */
+	public int resume( CallFrame frame, int retCount );
+
+	/**
+	 * Called instead of resume when the function raised an error. Rethrow it to pass
+	 * the error on to the callers of the frame.
+	 */
+	public int fail( CallFrame frame, RuntimeException err );
+
+}
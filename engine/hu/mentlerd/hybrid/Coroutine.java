@@ -1,13 +1,16 @@
 package hu.mentlerd.hybrid;
 
-import java.util.Vector;
-
 public class Coroutine {
 	public static final int INITIAL_STACK_SIZE	= 32;
 	public static final int INITIAL_FRAME_SIZE	= 10;
 	
+	//Default limits, see setLimits
 	public static final int MAX_STACK_SIZE 	= 1024;
 	public static final int MAX_FRAME_SIZE	= 100;
+	
+	//Levels kept from the top, and the bottom of long stack traces, see luaL_traceback
+	public static final int TRACE_HEAD = 12;
+	public static final int TRACE_TAIL = 10;
 
 	public static void yield( CallFrame frame, CallFrame argFrame, int argCount ){
 		if ( !frame.canYield )
@@ -40,7 +43,11 @@ public class Coroutine {
         thread.coroutine = parent;
 	}
 	
-	private final Vector<UpValue> upvalues = new Vector<UpValue>();
+	private static final Object[] NO_STACK		= new Object[0];
+	private static final CallFrame[] NO_FRAMES	= new CallFrame[0];
+	
+	//Open upvalues, ordered by descending stack index
+	private UpValue openUpvalues;
 	protected final Platform platform;
 	
 	protected LuaThread thread;
@@ -51,44 +58,130 @@ public class Coroutine {
 	protected Object[] stack;
 	protected int top;
 	
-	private CallFrame[] frameStack;
+	protected CallFrame[] frameStack;
 	private int frameStackTop;
+	
+	protected int maxStackSize = MAX_STACK_SIZE;
+	protected int maxFrameSize = MAX_FRAME_SIZE;
+	
+	//Instruction budget, counted down on loops and calls, see setBudget
+	protected int budget = Integer.MAX_VALUE;
+	protected int slice; //Zero when unlimited
 
-	private StringBuilder stackTrace = new StringBuilder();
+	private StringBuilder stackTrace; //Only created on errors
 	private int stackTraceLevel = 0;
 	
+	private String[] stackTraceTail; //The last levels past TRACE_HEAD, wrapping around
+	
 	public Coroutine( Platform platform, LuaTable env ){
-		this.stack 		= new Object[INITIAL_STACK_SIZE];
-		this.frameStack	= new CallFrame[INITIAL_FRAME_SIZE];
+		this(platform, env, new Object[INITIAL_STACK_SIZE], new CallFrame[INITIAL_FRAME_SIZE]);
+	}
+	
+	/**
+	 * Creates a coroutine on the (Cleared) stacks of a dead one, see {@link LuaThread#newCoroutine}
+	 */
+	protected Coroutine( Platform platform, LuaTable env, Object[] stack, CallFrame[] frameStack ){
+		this.stack 		= stack;
+		this.frameStack	= frameStack;
 	
 		this.platform 	= platform;
 		this.env		= env;
+		
+		for ( CallFrame frame : frameStack ){
+			if ( frame != null )
+				frame.coroutine = this;
+		}
 	}
 	
 	//Used to setup root function
 	public Coroutine( Platform platform, LuaTable env, LuaClosure root ){
 		this(platform, env);
-		
+		setRoot(root);
+	}
+	
+	protected void setRoot( LuaClosure root ){
 		CallFrame frame = pushCallFrame(root, 0, 0, -1);
 			frame.fromLua	= true;
 			frame.canYield	= true;	
 	}
 	
+	/**
+	 * Sets how large the stacks of the coroutine may grow. The stacks start small, and
+	 * are only grown as deeper calls need them, so high limits cost nothing for shallow
+	 * coroutines.
+	 * 
+	 * @param maxStackSize The maximum count of values on the stack
+	 * @param maxFrameSize The maximum count of nested calls
+	 */
+	public void setLimits( int maxStackSize, int maxFrameSize ){
+		if ( maxStackSize < 1 || maxFrameSize < 1 )
+			throw new IllegalArgumentException("Illegal stack limits");
+		
+		this.maxStackSize = maxStackSize;
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	public int getMaxStackSize(){
+		return maxStackSize;
+	}
+	public int getMaxFrameSize(){
+		return maxFrameSize;
+	}
+	
+	/**
+	 * Limits how long the coroutine may run. The budget is spent on loop iterations,
+	 * and calls to Lua functions. Once it runs out, a coroutine run by a {@link Scheduler}
+	 * yields, (Or if it is in a function called from Java, at the first point it can) and
+	 * gets a new budget. Others raise an error, which keeps being raised until the budget
+	 * is set again.
+	 * 
+	 * @param slice The budget, or zero for no limit
+	 */
+	public void setBudget( int slice ){
+		if ( slice < 0 )
+			throw new IllegalArgumentException("Illegal budget");
+		
+		this.slice	= slice;
+		this.budget	= ( slice == 0 ? Integer.MAX_VALUE : slice );
+	}
+	
+	/**
+	 * @return The budget left, or -1 when unlimited
+	 */
+	public int getBudget(){
+		return ( slice == 0 ? -1 : Math.max(budget, 0) );
+	}
+	
+	/**
+	 * Clears the stacks of a dead coroutine, and gives up them to be reused
+	 */
+	protected void release(){
+		stackClear(0, stack.length -1);
+		
+		stack		= NO_STACK;
+		frameStack	= NO_FRAMES;
+		top			= 0;
+	}
+	
 	/*
 	 * Stack management
 	 */
 	public final void setTop( int newTop ){
 		if ( top < newTop ){
+			if ( newTop > maxStackSize )
+				throw new LuaException("Stack overflow");
+			
 			//Ensure stack size
 			int size = stack.length;
 			
 			if ( size < newTop ){ //Realloc
-				if ( newTop > MAX_STACK_SIZE )
-					throw new LuaException("Stack overflow");
+				size = Math.max(size, INITIAL_STACK_SIZE);
 				
 				while( size < newTop )
 					size <<= 1;
 				
+				size = Math.min(size, maxStackSize); //Never more than the limit
+				
 				Object[] realloc = new Object[size];
 				System.arraycopy(stack, 0, realloc, 0, stack.length);	
 				stack = realloc;
@@ -162,11 +255,12 @@ public class Coroutine {
 		int newTop 	= frameStackTop +1;
 		int size	= frameStack.length;
 		
-		if ( newTop > MAX_FRAME_SIZE )
+		if ( newTop > maxFrameSize )
 			throw new LuaException("Frame stack overflow");
 		
 		if ( size < newTop ){ //Realloc
-			size <<= 1;
+			size = Math.max(size << 1, INITIAL_FRAME_SIZE);
+			size = Math.min(size, maxFrameSize);
 			
 			CallFrame[] realloc = new CallFrame[size];
 			System.arraycopy(frameStack, 0, realloc, 0, frameStack.length);
@@ -199,24 +293,28 @@ public class Coroutine {
 	 * Upvalues
 	 */
 	public void closeUpvalues( int index ){
-		int loopIndex = upvalues.size();
+		UpValue upvalue = openUpvalues;
 		
-		while( --loopIndex >= 0 ){
-			UpValue upvalue = upvalues.elementAt(loopIndex);
-			
-			if ( upvalue.getIndex() < index )
-				return;
+		if ( upvalue == null || upvalue.getIndex() < index )
+			return; //Nothing open above the index
+		
+		do {
+			UpValue next = upvalue.next;
 			
 			upvalue.close();
-			upvalues.removeElementAt(loopIndex);
-		}
+			upvalue.next = null;
+			
+			upvalue = next;
+		} while ( upvalue != null && upvalue.getIndex() >= index );
+		
+		openUpvalues = upvalue;
 	}
 	
 	public UpValue findUpvalue( int index ){
-		int loopIndex = upvalues.size();
+		UpValue prev	= null;
+		UpValue upvalue	= openUpvalues;
 		
-		while( --loopIndex >= 0 ){
-			UpValue upvalue = upvalues.elementAt(loopIndex);
+		while( upvalue != null ){
 			int currIndex = upvalue.getIndex();
 			
 			if ( currIndex == index )
@@ -224,18 +322,30 @@ public class Coroutine {
 			
 			if ( currIndex < index )
 				break; //Not found, create!
+			
+			prev	= upvalue;
+			upvalue	= upvalue.next;
 		}
 		
-		UpValue upvalue = new UpValue(this, index);
+		UpValue created = new UpValue(this, index);
+			created.next = upvalue;
 		
-		upvalues.insertElementAt(upvalue, loopIndex +1);
-		return upvalue;
+		if ( prev == null ){
+			openUpvalues = created;
+		} else {
+			prev.next = created;
+		}
+		
+		return created;
 	}
 	
 	/*
 	 * Misc
 	 */
 	protected void beginStackTrace( CallFrame frame, Throwable err ){
+		if ( stackTrace == null )
+			stackTrace = new StringBuilder();
+		
 		stackTrace.append(frame.getSourceLocation());	
 		stackTrace.append(": ");
 		
@@ -257,15 +367,23 @@ public class Coroutine {
 		 //Skip the first frame, as it was already added in beginStackTrace
 		if ( ++stackTraceLevel == 0 ) return;
 		
+		if ( stackTrace == null )
+			stackTrace = new StringBuilder();
+		
+		StringBuilder line = stackTrace;
+		
+		if ( stackTraceLevel > TRACE_HEAD ) //Only the last levels are kept from here
+			line = new StringBuilder();
+		
 		//Build the prefix
-		for ( int index = 0; index < stackTraceLevel; index++ )
-			stackTrace.append( ' ' );
+		for ( int index = Math.min(stackTraceLevel, TRACE_HEAD); index > 0; index-- )
+			line.append( ' ' );
 		
-		stackTrace.append(stackTraceLevel);
-		stackTrace.append(". ");
+		line.append(stackTraceLevel);
+		line.append(". ");
 		
 		//Trace back the source of the function on the stack
-		if ( frame.isLua() ){
+		if ( frame.isLua() && frame.pc > 0 ){ //Not running yet when a lazy body fails to compile
 			int lastOp = frame.closure.proto.code[ frame.pc -1 ];
 			
 			String origin = LuaUtil.findSlotOrigin(frame, LuaOpcodes.getA8(lastOp));
@@ -273,23 +391,52 @@ public class Coroutine {
 			if ( origin == null )
 				origin = "unknown";
 				
-			stackTrace.append(origin);
+			line.append(origin);
 		} else {
-			stackTrace.append("java call");
+			line.append("java call");
 		}
 
 		//Add location
-		stackTrace.append(" - ");
+		line.append(" - ");
 		
-		stackTrace.append(frame.getSourceLocation());
-		stackTrace.append('\n');
+		line.append(frame.getSourceLocation());
+		line.append('\n');
+		
+		if ( line != stackTrace ){
+			if ( stackTraceTail == null )
+				stackTraceTail = new String[TRACE_TAIL];
+			
+			stackTraceTail[ stackTraceLevel % TRACE_TAIL ] = line.toString();
+		}
 	}
 	
 	public String getStackTrace(){
-		return stackTrace.toString();
+		if ( stackTrace == null )
+			return "";
+		
+		if ( stackTraceLevel <= TRACE_HEAD )
+			return stackTrace.toString();
+		
+		StringBuilder sb = new StringBuilder(stackTrace);
+		
+		int first	= Math.max(TRACE_HEAD +1, stackTraceLevel - TRACE_TAIL +1);
+		int skipped	= first - TRACE_HEAD -1;
+		
+		if ( skipped > 0 ){
+			for ( int index = 0; index < TRACE_HEAD; index++ )
+				sb.append( ' ' );
+			
+			sb.append("... (").append(skipped).append(" levels skipped)\n");
+		}
+		
+		for ( int level = first; level <= stackTraceLevel; level++ )
+			sb.append( stackTraceTail[ level % TRACE_TAIL ] );
+		
+		return sb.toString();
 	}
 	public void resetStackTrace(){
-		stackTrace = new StringBuilder();
+		stackTrace = null;
+		stackTraceTail = null;
 		stackTraceLevel = 0;
 	}
 	
@@ -0,0 +1,56 @@
+package hu.mentlerd.hybrid;
+
+/**
+ * A growable character buffer for scripts, (See the strbuf library) to assemble
+ * text without creating the intermediate strings of repeated concatenation.
+ *
+ * Resetting a buffer keeps its capacity, so a buffer kept around (In an upvalue, or
+ * a table) can be reused for every call without reallocating.
+ */
+public class LuaBuffer {
+
+	public static final int DEFAULT_CAPACITY = 64;
+
+	protected final StringBuilder buffer;
+
+	public LuaBuffer(){
+		this(DEFAULT_CAPACITY);
+	}
+	public LuaBuffer( int capacity ){
+		this.buffer = new StringBuilder(capacity);
+	}
+
+	/**
+	 * Appends a string, number or buffer
+	 *
+	 * @return False if the value can not be appended
+	 */
+	public boolean append( Object value ){
+		if ( value instanceof LuaBuffer ){
+			buffer.append( ((LuaBuffer) value).buffer );
+		} else if ( LuaUtil.isString(value) || value instanceof Double ){
+			buffer.append( LuaUtil.rawToString(value) );
+		} else {
+			return false;
+		}
+
+		return true;
+	}
+
+	public StringBuilder getBuilder(){
+		return buffer;
+	}
+
+	public void reset(){
+		buffer.setLength(0);
+	}
+
+	public int length(){
+		return buffer.length();
+	}
+
+	public String toString(){
+		return buffer.toString();
+	}
+
+}
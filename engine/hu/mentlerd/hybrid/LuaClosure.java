@@ -1,30 +1,109 @@
 package hu.mentlerd.hybrid;
 
+import hu.mentlerd.hybrid.compiler.DataParser;
 import hu.mentlerd.hybrid.compiler.LexState;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public final class LuaClosure {
 
 	public static Prototype compile( String code, String source ) throws IOException{
 		return compile( new ByteArrayInputStream(code.getBytes()), source);
 	}
+	public static Prototype compile( String code, String source, StringPool pool ) throws IOException{
+		return compile( new ByteArrayInputStream(code.getBytes()), source, pool);
+	}
+	
+	/**
+	 * Compiles source, or loads bytecode (Like the result of string.dump) stored as bytes
+	 */
+	public static Prototype compile( LuaString code, String source, StringPool pool ) throws IOException{
+		return compile( code.toInputStream(), source, pool );
+	}
+	
+	public static Prototype compile( InputStream stream, String source ) throws IOException{
+		return compile(stream, source, null);
+	}
 	
-	public static Prototype compile( InputStream stream, String source ) throws IOException{	
+	/**
+	 * @param pool The pool to intern the constants and names with, usually {@link Platform#getStringPool()}. May be null
+	 */
+	public static Prototype compile( InputStream stream, String source, StringPool pool ) throws IOException{	
 		int first = stream.read();
 		
 		if ( first == BytecodeManager.SIGNATURE[0] ){
-			return BytecodeManager.read(first, stream);
+			return BytecodeManager.read(first, stream, pool);
 		} else {
 			InputStreamReader reader = new InputStreamReader(stream);
 			
-			return LexState.compile(first, reader, source);
+			return LexState.compile(first, reader, source, pool);
 		}
 	}
 	
+	/**
+	 * Compiles a chunk, but only skims the bodies of the functions declared in it. Those
+	 * are compiled on their first call, so functions which are never called only cost
+	 * their source text.
+	 */
+	public static Prototype compileLazy( String code, String source ) throws IOException{
+		return compileLazy(code, source, null);
+	}
+	public static Prototype compileLazy( String code, String source, StringPool pool ) throws IOException{
+		if ( code.length() > 0 && code.charAt(0) == BytecodeManager.SIGNATURE[0] )
+			return compile(code, source, pool);
+		
+		return LexState.compileLazy(code.toCharArray(), source, pool);
+	}
+	
+	/**
+	 * Loads a data chunk (a table constructor of constants) directly into a table, without
+	 * compiling it. The source is read as a stream, so huge level or config files can be
+	 * loaded without holding the source, or a prototype of it in memory.
+	 */
+	public static LuaTable loadData( InputStream stream, String source ) throws IOException{
+		return loadData(stream, source, null);
+	}
+	public static LuaTable loadData( InputStream stream, String source, StringPool pool ) throws IOException{
+		Reader reader = new BufferedReader( new InputStreamReader(stream) );
+
+		return DataParser.parse(reader.read(), reader, source, pool);
+	}
+
+	/**
+	 * Compiles a batch of independent scripts on the given executor. (A ForkJoinPool
+	 * works too) The compiler has no shared mutable state, so every source is compiled
+	 * as a separate task.
+	 * 
+	 * @param executor The executor to run the compile tasks on
+	 * @param sources Source names mapped to the code to compile
+	 * @return Source names mapped to the pending prototypes, in the order of the sources map
+	 */
+	public static Map<String, Future<Prototype>> compile( ExecutorService executor, Map<String, String> sources ){
+		Map<String, Future<Prototype>> results = new LinkedHashMap<String, Future<Prototype>>();
+		
+		for ( Map.Entry<String, String> entry : sources.entrySet() ){
+			final String source	= entry.getKey();
+			final String code	= entry.getValue();
+			
+			results.put(source, executor.submit(new java.util.concurrent.Callable<Prototype>() {
+				public Prototype call() throws IOException {
+					return compile(code, source);
+				}
+			}));
+		}
+		
+		return results;
+	}
+	
 	public Prototype proto;
 	public LuaTable env;
 	
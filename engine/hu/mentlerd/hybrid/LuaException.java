@@ -4,6 +4,7 @@ public class LuaException extends RuntimeException{
 	private static final long serialVersionUID = -8214311557059032574L;
 
 	private Object luaCause;
+	private String luaStackTrace;
 	
 	public LuaException( String message ) {
 		super( message );
@@ -24,4 +25,15 @@ public class LuaException extends RuntimeException{
 		
 		return luaCause;
 	}
+	
+	/**
+	 * Returns the Lua stack trace of the error, if it was filled in by whoever caught
+	 * it from the thread (See {@link LuaExecutor})
+	 */
+	public String getLuaStackTrace(){
+		return luaStackTrace;
+	}
+	public void setLuaStackTrace( String trace ){
+		this.luaStackTrace = trace;
+	}
 }
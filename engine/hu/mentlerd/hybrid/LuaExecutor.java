@@ -0,0 +1,198 @@
+package hu.mentlerd.hybrid;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent Lua functions on a fixed count of worker threads, each with its
+ * own LuaThread on the shared platform. Idle workers steal from the queues of the
+ * busy ones, so a long function does not hold up the ones queued behind it.
+ *
+ * The platform and the libraries are safe to share, tables are not: Functions running
+ * at the same time should not write to the same tables, including their environments.
+ */
+public class LuaExecutor {
+
+	public static final int IDLE_WAIT = 5; //Milliseconds between steal attempts
+
+	protected class Worker extends Thread {
+		protected final LinkedBlockingDeque<Task> queue = new LinkedBlockingDeque<Task>();
+		protected final LuaThread thread;
+		protected final int index;
+
+		protected Worker( int index ){
+			super("LuaExecutor-" + index);
+			setDaemon(true);
+
+			this.thread	= new LuaThread(platform, env);
+			this.index	= index;
+		}
+
+		protected LuaExecutor getExecutor(){
+			return LuaExecutor.this;
+		}
+
+		public void run(){
+			while ( !shutdown || pending.get() > 0 ){
+				Task task = queue.pollFirst();
+
+				if ( task == null )
+					task = steal(this);
+
+				if ( task == null ){
+					try {
+						task = queue.pollFirst(IDLE_WAIT, TimeUnit.MILLISECONDS);
+					} catch ( InterruptedException err ){
+						continue; //Check for shutdown
+					}
+				}
+
+				if ( task != null ){
+					pending.decrementAndGet();
+					task.run();
+				}
+			}
+		}
+	}
+
+	protected static class Task extends FutureTask<Object[]> {
+		public Task( final Object function, final Object[] args ){
+			super(new java.util.concurrent.Callable<Object[]>(){
+				public Object[] call(){
+					LuaThread thread = ((Worker) Thread.currentThread()).thread;
+
+					try {
+						return thread.callMultret(function, 0, args);
+					} catch ( RuntimeException err ){
+						throw traced(thread, err);
+					} finally {
+						thread.reset();
+					}
+				}
+			});
+		}
+	}
+
+	protected final Platform platform;
+	protected final LuaTable env;
+
+	protected final Worker[] workers;
+	protected final AtomicInteger next		= new AtomicInteger();
+	protected final AtomicInteger pending	= new AtomicInteger();
+
+	protected volatile boolean shutdown;
+
+	public LuaExecutor( Platform platform, LuaTable env ){
+		this(platform, env, Runtime.getRuntime().availableProcessors());
+	}
+	public LuaExecutor( Platform platform, LuaTable env, int threads ){
+		if ( threads < 1 )
+			throw new IllegalArgumentException("Illegal thread count");
+
+		this.platform	= platform;
+		this.env		= env;
+
+		workers = new Worker[threads];
+
+		for ( int index = 0; index < threads; index++ )
+			workers[index] = new Worker(index);
+		for ( Worker worker : workers )
+			worker.start();
+	}
+
+	/**
+	 * Queues a function to be called with the arguments on one of the workers.
+	 *
+	 * The future returns the values returned by the function, or fails with the
+	 * LuaException raised by it, with the Lua stack trace filled in.
+	 */
+	public Future<Object[]> submit( Object function, Object ... args ){
+		if ( !LuaThread.isCallable(function) )
+			throw new IllegalArgumentException("Not a callable function");
+
+		pending.incrementAndGet(); //Keeps the workers alive until queued
+
+		if ( shutdown ){
+			pending.decrementAndGet();
+			throw new IllegalStateException("Executor is shut down");
+		}
+
+		Task task = new Task(function, args);
+		Thread current = Thread.currentThread();
+
+		//Functions submitted from a worker stay local, unless stolen
+		Worker worker;
+		if ( current instanceof Worker && ((Worker) current).getExecutor() == this ){
+			worker = (Worker) current;
+		} else {
+			worker = workers[ (next.getAndIncrement() & Integer.MAX_VALUE) % workers.length ];
+		}
+
+		worker.queue.addFirst(task);
+		return task;
+	}
+
+	protected Task steal( Worker thief ){
+		int count = workers.length;
+
+		for ( int index = 1; index < count; index++ ){ //Start from the neighbour
+			Worker victim = workers[ (thief.index + index) % count ];
+
+			Task task = victim.queue.pollLast();
+
+			if ( task != null )
+				return task;
+		}
+
+		return null;
+	}
+
+	protected static LuaException traced( LuaThread thread, RuntimeException err ){
+		LuaException error;
+
+		if ( err instanceof LuaException ){
+			error = (LuaException) err;
+		} else {
+			error = new LuaException(err);
+		}
+
+		if ( error.getLuaStackTrace() == null )
+			error.setLuaStackTrace( thread.coroutine.getStackTrace() );
+
+		return error;
+	}
+
+	/**
+	 * Stops the workers once the queued functions are done, no new functions are
+	 * accepted from this point.
+	 */
+	public void shutdown(){
+		shutdown = true;
+	}
+
+	public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		for ( Worker worker : workers ){
+			long left = deadline - System.nanoTime();
+
+			if ( left > 0 )
+				TimeUnit.NANOSECONDS.timedJoin(worker, left);
+
+			if ( worker.isAlive() )
+				return false;
+		}
+
+		return true;
+	}
+
+	public int getThreadCount(){
+		return workers.length;
+	}
+	public int getPendingCount(){
+		return pending.get();
+	}
+}
@@ -0,0 +1,127 @@
+package hu.mentlerd.hybrid;
+
+/**
+ * The result of a long concatenation, which is only turned into a String when it is
+ * first used as one. (Hashed, compared, passed to a library, or to Java)
+ *
+ * Ropes share a single growing buffer: Appending to a rope which ends where its buffer
+ * ends simply appends to the buffer, so building a string with a loop of
+ * 's = s .. piece' only copies every character once, instead of on every iteration.
+ * Appending to an older rope copies its characters into a new buffer.
+ */
+public final class LuaRope implements CharSequence {
+
+	/**
+	 * Shorter results are created as Strings right away
+	 */
+	public static final int MIN_LENGTH = 256;
+
+	/**
+	 * Concatenates a value with the strings, and numbers between the given indices
+	 * (Inclusive) of the stack, used by OP_CONCAT.
+	 *
+	 * @return A String, or a LuaRope if the result is long
+	 */
+	public static Object concat( Object left, Object[] parts, int from, int to ){
+		if ( "".equals(left) && parts[from] instanceof LuaRope ) //Continue the first rope
+			left = parts[from++];
+
+		if ( from > to )
+			return left;
+
+		if ( left instanceof LuaRope )
+			return ((LuaRope) left).append(parts, from, to);
+
+		StringBuilder buffer = new StringBuilder( LuaUtil.rawToString(left) );
+
+		for ( int index = from; index <= to; index++ )
+			buffer.append( LuaUtil.rawToString(parts[index]) );
+
+		int total = buffer.length();
+		if ( total < MIN_LENGTH )
+			return buffer.toString();
+
+		buffer.ensureCapacity( total * 2 ); //Room for the next pieces
+		return new LuaRope(buffer, total);
+	}
+
+	/**
+	 * Returns ropes as Strings, and other values as they are. Java only ever sees flat
+	 * strings: Arguments, table values, and results are flattened on their way out.
+	 */
+	public static Object flatten( Object value ){
+		if ( value instanceof LuaRope )
+			return value.toString();
+
+		return value;
+	}
+
+	private final StringBuilder buffer;
+	private final int length;
+
+	private String flat;
+
+	private LuaRope( StringBuilder buffer, int length ){
+		this.buffer = buffer;
+		this.length = length;
+	}
+
+	protected LuaRope append( Object[] parts, int from, int to ){
+		synchronized( buffer ){
+			StringBuilder target = buffer;
+
+			if ( buffer.length() != length ){ //Someone appended to this buffer already
+				target = new StringBuilder( length * 2 );
+				target.append(buffer, 0, length);
+			}
+
+			for ( int index = from; index <= to; index++ )
+				target.append( LuaUtil.rawToString(parts[index]) );
+
+			return new LuaRope(target, target.length());
+		}
+	}
+
+	public int length(){
+		return length;
+	}
+
+	public char charAt( int index ){
+		return toString().charAt(index);
+	}
+
+	public CharSequence subSequence( int start, int end ){
+		return toString().subSequence(start, end);
+	}
+
+	/**
+	 * Returns the characters as a String, creating it on the first call
+	 */
+	public String toString(){
+		String string = flat;
+
+		if ( string == null ){
+			synchronized( buffer ){
+				string = buffer.substring(0, length);
+			}
+
+			flat = string;
+		}
+
+		return string;
+	}
+
+	public int hashCode(){
+		return toString().hashCode();
+	}
+
+	public boolean equals( Object obj ){
+		if ( this == obj ) return true;
+
+		if ( !(obj instanceof LuaRope) )
+			return false;
+
+		return toString().equals( obj.toString() );
+	}
+
+}
@@ -0,0 +1,265 @@
+package hu.mentlerd.hybrid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A Lua string backed by bytes, for binary data. Every byte is a character in
+ * the 0-255 range, (Latin-1) so a LuaString equals the String of the same
+ * characters, and has the same hash code.
+ *
+ * Substrings share the byte array of their parent, so the bytes must not be
+ * modified once wrapped.
+ *
+ * LuaStrings can be used anywhere a string is expected. Functions that need a
+ * String get one through {@link CallFrame#getArg(int, Class)}, and table keys are
+ * always stored as Strings.
+ */
+public final class LuaString implements CharSequence, Comparable<LuaString> {
+
+	public static final Charset LATIN1	= Charset.forName("ISO-8859-1");
+	public static final Charset UTF8	= Charset.forName("UTF-8");
+
+	public static final LuaString EMPTY = new LuaString(new byte[0], 0, 0);
+
+	/**
+	 * Wraps the bytes without copying
+	 */
+	public static LuaString wrap( byte[] bytes ){
+		return new LuaString(bytes, 0, bytes.length);
+	}
+	public static LuaString wrap( byte[] bytes, int offset, int length ){
+		if ( offset < 0 || length < 0 || offset + length > bytes.length )
+			throw new IndexOutOfBoundsException();
+
+		return new LuaString(bytes, offset, length);
+	}
+
+	/**
+	 * Converts a String with characters in the 0-255 range
+	 */
+	public static LuaString valueOf( String string ){
+		int length = string.length();
+		byte[] bytes = new byte[length];
+
+		for ( int index = 0; index < length; index++ ){
+			char c = string.charAt(index);
+
+			if ( c > 255 )
+				throw new IllegalArgumentException("character out of range at " + index);
+
+			bytes[index] = (byte) c;
+		}
+
+		return new LuaString(bytes, 0, length);
+	}
+
+	/**
+	 * Encodes a String, like text to be sent over the network
+	 */
+	public static LuaString encode( String string, Charset charset ){
+		return wrap( string.getBytes(charset) );
+	}
+
+	protected final byte[] bytes;
+	protected final int offset;
+	protected final int length;
+
+	private int hash;
+
+	private LuaString( byte[] bytes, int offset, int length ){
+		this.bytes	= bytes;
+		this.offset	= offset;
+		this.length	= length;
+	}
+
+	public int length(){
+		return length;
+	}
+
+	public char charAt( int index ){
+		return (char) byteAt(index);
+	}
+
+	/**
+	 * Returns the unsigned value of a byte
+	 */
+	public int byteAt( int index ){
+		if ( index < 0 || index >= length )
+			throw new IndexOutOfBoundsException();
+
+		return bytes[offset + index] & 0xFF;
+	}
+
+	public CharSequence subSequence( int start, int end ){
+		return substring(start, end);
+	}
+
+	/**
+	 * Returns a view of the bytes between start (inclusive) and end (exclusive)
+	 */
+	public LuaString substring( int start, int end ){
+		if ( start < 0 || end > length || start > end )
+			throw new IndexOutOfBoundsException();
+
+		if ( start == 0 && end == length )
+			return this;
+
+		return new LuaString(bytes, offset + start, end - start);
+	}
+
+	public LuaString concat( LuaString other ){
+		if ( other.length == 0 ) return this;
+		if ( length == 0 ) return other;
+
+		byte[] joined = new byte[length + other.length];
+
+		System.arraycopy(bytes, offset, joined, 0, length);
+		System.arraycopy(other.bytes, other.offset, joined, length, other.length);
+
+		return new LuaString(joined, 0, joined.length);
+	}
+
+	/**
+	 * Joins the LuaStrings between the given indices, (Inclusive) used by OP_CONCAT
+	 */
+	public static LuaString concat( Object[] parts, int from, int to ){
+		int total = 0;
+
+		for ( int index = from; index <= to; index++ )
+			total += ((LuaString) parts[index]).length;
+
+		byte[] joined = new byte[total];
+		int offset = 0;
+
+		for ( int index = from; index <= to; index++ ){
+			LuaString part = (LuaString) parts[index];
+
+			System.arraycopy(part.bytes, part.offset, joined, offset, part.length);
+			offset += part.length;
+		}
+
+		return new LuaString(joined, 0, total);
+	}
+
+	/**
+	 * Returns a copy of the bytes
+	 */
+	public byte[] getBytes(){
+		byte[] copy = new byte[length];
+		System.arraycopy(bytes, offset, copy, 0, length);
+
+		return copy;
+	}
+
+	public void copyTo( int start, byte[] dest, int destOffset, int len ){
+		System.arraycopy(bytes, offset + start, dest, destOffset, len);
+	}
+
+	public void writeTo( OutputStream stream ) throws IOException{
+		stream.write(bytes, offset, length);
+	}
+
+	public InputStream toInputStream(){
+		return new ByteArrayInputStream(bytes, offset, length);
+	}
+
+	/**
+	 * Decodes the bytes as text in the given charset
+	 */
+	public String decode( Charset charset ){
+		return new String(bytes, offset, length, charset);
+	}
+
+	/**
+	 * Returns the characters as a String, (One character per byte)
+	 */
+	public String toString(){
+		char[] chars = new char[length];
+
+		for ( int index = 0; index < length; index++ )
+			chars[index] = (char) (bytes[offset + index] & 0xFF);
+
+		return new String(chars);
+	}
+
+	public int hashCode(){
+		int h = hash;
+
+		if ( h == 0 && length > 0 ){ //Same as String.hashCode
+			for ( int index = 0; index < length; index++ )
+				h = 31 * h + (bytes[offset + index] & 0xFF);
+
+			hash = h;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Equal to other LuaStrings with the same bytes. (See {@link #contentEquals} for Strings)
+	 */
+	public boolean equals( Object obj ){
+		if ( this == obj ) return true;
+
+		if ( !(obj instanceof LuaString) )
+			return false;
+
+		LuaString other = (LuaString) obj;
+
+		if ( length != other.length || hashCode() != other.hashCode() )
+			return false;
+
+		for ( int index = 0; index < length; index++ ){
+			if ( bytes[offset + index] != other.bytes[other.offset + index] )
+				return false;
+		}
+
+		return true;
+	}
+
+	public boolean contentEquals( CharSequence other ){
+		if ( length != other.length() )
+			return false;
+
+		for ( int index = 0; index < length; index++ ){
+			if ( (bytes[offset + index] & 0xFF) != other.charAt(index) )
+				return false;
+		}
+
+		return true;
+	}
+
+	public int compareTo( LuaString other ){
+		int len = Math.min(length, other.length);
+
+		for ( int index = 0; index < len; index++ ){
+			int diff = (bytes[offset + index] & 0xFF) - (other.bytes[other.offset + index] & 0xFF);
+
+			if ( diff != 0 )
+				return diff;
+		}
+
+		return length - other.length;
+	}
+
+	/**
+	 * Compares Strings and LuaStrings by their characters
+	 */
+	public static int compare( CharSequence a, CharSequence b ){
+		int len = Math.min(a.length(), b.length());
+
+		for ( int index = 0; index < len; index++ ){
+			int diff = a.charAt(index) - b.charAt(index);
+
+			if ( diff != 0 )
+				return diff;
+		}
+
+		return a.length() - b.length();
+	}
+
+}
@@ -68,6 +68,9 @@ public class LuaTable implements Indexable, Iterable<Object>{
 	//Meta
 	protected LuaTable metatable;
 	
+	//Frozen tables reject writes, so they may be read by many threads (See Channel)
+	protected boolean frozen;
+	
 	public LuaTable(){
 		this( INITIAL_ARRAY_SIZE, INITIAL_HASH_SIZE );
 	}
@@ -93,6 +96,9 @@ public class LuaTable implements Indexable, Iterable<Object>{
 		if ( key == null )
 			throw new LuaException("table index is nil");
 		
+		if ( key instanceof LuaString || key instanceof LuaRope ) //Keys are always stored as Strings
+			key = key.toString();
+		
 		//In case of integer indexes, check the table first, but allow a hash search too
 		if ( key instanceof Double ){
 			Double index	= (Double) key;
@@ -108,13 +114,20 @@ public class LuaTable implements Indexable, Iterable<Object>{
 		if ( 1 <= key && key -1 < arrayCapacity )
 			return array[key -1];
 		
-		return hashValues[ getHashSlot(Double.valueOf(key)) ];
+		return hashValues[ getHashSlot(LuaUtil.box(key)) ];
 	}
 	
 	public void rawset( Object key, Object value ){
 		if ( key == null )
 			throw new LuaException("table index is nil");
 		
+		checkWritable();
+		
+		if ( key instanceof LuaString || key instanceof LuaRope )
+			key = key.toString();
+		
+		value = LuaRope.flatten(value); //Values are read by Java directly
+		
 		//In case of integer indexes, try to put into the array instead
 		if ( key instanceof Double ){
 			Double index 	= (Double) key;
@@ -131,10 +144,14 @@ public class LuaTable implements Indexable, Iterable<Object>{
 	}
 	
 	public void rawset( int key, Object value ){
+		checkWritable();
+		
+		value = LuaRope.flatten(value);
+		
 		if ( setArraySlot(key -1, value) )
 			return;
 		
-		setHashSlot(Double.valueOf(key), value);
+		setHashSlot(LuaUtil.box(key), value);
 	}
 	
 	public int size(){
@@ -187,6 +204,8 @@ public class LuaTable implements Indexable, Iterable<Object>{
 		if ( key == null ){
 			arrayIndex	= 0; //Allow searching for values
 		} else {
+			if ( key instanceof LuaString || key instanceof LuaRope )
+				key = key.toString();
 			
 			//Check for starting index
 			if ( key instanceof Double ){
@@ -219,7 +238,7 @@ public class LuaTable implements Indexable, Iterable<Object>{
 		if ( arrayIndex != -1 ){
 			for( int index = arrayIndex; index < arrayCapacity; index++ ){
 				if ( array[index] != null )
-					return Double.valueOf(index +1);
+					return LuaUtil.box(index +1);
 			}
 			
 			//No more keys in the array, allow hash search
@@ -240,12 +259,49 @@ public class LuaTable implements Indexable, Iterable<Object>{
 	 * Generic
 	 */
 	public void setMetatable( LuaTable meta ){
+		checkWritable();
+		
 		this.metatable = meta;
 	}
 	public LuaTable getMetatable(){
 		return metatable;
 	}
 	
+	/**
+	 * Freezes the table, and every table reachable from it, including metatables. Writes
+	 * to frozen tables raise an error, so they are safe to read from many threads.
+	 */
+	public void freeze(){
+		if ( frozen ) return;
+		
+		frozen = true; //Before the contents, tables may reference themselves
+		
+		if ( metatable != null )
+			metatable.freeze();
+		
+		for ( int index = 0; index < arrayCapacity; index++ )
+			freeze( array[index] );
+		
+		for ( int index = 0; index < hashCapacity; index++ ){
+			freeze( hashKeys[index] );
+			freeze( hashValues[index] );
+		}
+	}
+	
+	private static void freeze( Object value ){
+		if ( value instanceof LuaTable )
+			((LuaTable) value).freeze();
+	}
+	
+	public boolean isFrozen(){
+		return frozen;
+	}
+	
+	protected void checkWritable(){
+		if ( frozen )
+			throw new LuaException("attempt to modify a frozen table");
+	}
+	
 	/*
 	 * Array
 	 */
@@ -293,7 +349,7 @@ public class LuaTable implements Indexable, Iterable<Object>{
 		int hashSlot = hashOf( key ) & ( hashCapacity -1 );
 		
 		Object hashKey = null;
-		while( (hashKey = hashKeys[hashSlot]) != null && !key.equals( hashKey ) )
+		while( (hashKey = hashKeys[hashSlot]) != null && hashKey != key && !key.equals( hashKey ) )
 			hashSlot = ++hashSlot % hashCapacity;
 		
 		return hashSlot;
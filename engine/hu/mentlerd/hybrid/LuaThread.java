@@ -4,6 +4,22 @@ import static hu.mentlerd.hybrid.LuaOpcodes.*;
 
 public class LuaThread {
 	public static final int MAX_INDEX_RECURSION	= 100;
+	
+	public static final int MAX_POOLED_COROUTINES	= 16;
+	public static final int MAX_POOLED_STACK_SIZE	= 256;
+	
+	/**
+	 * Returned by Java functions, which called a function with callk
+	 */
+	public static final int CONTINUE = -1;
+	
+	//What a Lua frame does with the result of a function called in the loop
+	private static final int PENDING_STORE		= 1; //R(arg):= result
+	private static final int PENDING_TEST		= 2; //if (result ~= arg) then pc++
+	private static final int PENDING_DISCARD	= 3;
+	private static final int PENDING_TFORLOOP	= 4; //The rest of OP_TFORLOOP, arg = A | C << 8
+	
+	private static final Object PENDING = new Object();
 
 	private final Platform platform;
 	private final Coroutine root;
@@ -11,6 +27,18 @@ public class LuaThread {
 	public Coroutine coroutine;
 	public DebugHook hook;
 	
+	//Stacks of dead coroutines, reused by newCoroutine
+	private final Object[][] pooledStacks		= new Object[MAX_POOLED_COROUTINES][];
+	private final CallFrame[][] pooledFrames	= new CallFrame[MAX_POOLED_COROUTINES][];
+	private int pooled;
+	
+	//Set by the scheduler running the coroutines of the thread
+	protected Scheduler scheduler;
+	
+	//Limits of the coroutines created by the thread, see setStackLimits
+	private int maxStackSize = Coroutine.MAX_STACK_SIZE;
+	private int maxFrameSize = Coroutine.MAX_FRAME_SIZE;
+	
 	public LuaThread( Platform platform, LuaTable rootEnv ){
 		this.platform = platform;
 		
@@ -20,6 +48,81 @@ public class LuaThread {
 		coroutine	= root;
 	}
 	
+	/**
+	 * Sets the stack limits of the root coroutine, and of the coroutines created from
+	 * now on. (See {@link Coroutine#setLimits})
+	 */
+	public void setStackLimits( int maxStackSize, int maxFrameSize ){
+		root.setLimits(maxStackSize, maxFrameSize);
+		
+		this.maxStackSize = maxStackSize;
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	/*
+	 * Coroutines
+	 */
+	
+	/**
+	 * Creates a coroutine running the closure, reusing the stacks of a dead coroutine
+	 * when possible
+	 */
+	public Coroutine newCoroutine( LuaTable env, LuaClosure closure ){
+		Coroutine coroutine;
+		
+		if ( pooled > 0 ){
+			pooled--;
+			
+			coroutine = new Coroutine(platform, env, pooledStacks[pooled], pooledFrames[pooled]);
+			
+			pooledStacks[pooled] = null;
+			pooledFrames[pooled] = null;
+		} else {
+			coroutine = new Coroutine(platform, env);
+		}
+		
+		coroutine.setLimits(maxStackSize, maxFrameSize);
+		coroutine.setRoot(closure);
+		return coroutine;
+	}
+	
+	/**
+	 * Takes the stacks of a coroutine that has just died for reuse. Nothing can run on
+	 * a dead coroutine, so the object itself only needs to report its status after this.
+	 */
+	protected void recycle( Coroutine dead ){
+		if ( dead == root || !dead.isDead() )
+			return;
+		
+		Object[] stack		= dead.stack;
+		CallFrame[] frames	= dead.frameStack;
+		
+		dead.closeUpvalues(0); //Closures may outlive the coroutine, even one killed by an error
+		dead.release();
+		
+		if ( pooled < MAX_POOLED_COROUTINES && stack.length > 0 && stack.length <= MAX_POOLED_STACK_SIZE ){
+			pooledStacks[pooled] = stack;
+			pooledFrames[pooled] = frames;
+			pooled++;
+		}
+	}
+	
+	/**
+	 * Returns the thread to the root coroutine with an empty stack, dropping whatever
+	 * an error thrown out of a call left behind, so the thread can be reused.
+	 */
+	public void reset(){
+		root.closeUpvalues(0);
+		
+		while ( !root.isDead() )
+			root.popCallFrame();
+		
+		root.setTop(0);
+		root.resetStackTrace();
+		
+		coroutine = root;
+	}
+	
 	/*
 	 * VM Helper
 	 */
@@ -32,8 +135,16 @@ public class LuaThread {
 		if ( func == null )
 			throw new LuaException("attempt to call nil");
 		
-		if ( func instanceof Callable )
-			return callJava((Callable) func, base +1, base, argCount);
+		if ( func instanceof Callable ){
+			int retCount = callJava((Callable) func, base +1, base, argCount, false);
+			
+			if ( retCount == CONTINUE ){
+				luaMainloop(); //Runs until the continuation returns
+				retCount = coroutine.getTop() - base;
+			}
+			
+			return retCount;
+		}
 		
 		if ( !(func instanceof LuaClosure) )
 			throw new LuaException("attempt to call non function");
@@ -91,6 +202,92 @@ public class LuaThread {
 		}
 	}
 	
+	/**
+	 * Calls the function at the index of a Java frame, followed by the arguments, then
+	 * continues the frame with the results. Return the value of this method from the
+	 * Java function.
+	 * 
+	 * Lua functions are not called right away, but by the loop of the thread after the
+	 * Java function returned. This keeps the call yieldable, when the Java function was
+	 * called from a yieldable Lua function.
+	 */
+	public int callk( CallFrame frame, int index, int argCount, Continuation continuation ){
+		Coroutine owner = frame.coroutine;
+		
+		frame.continuation		= continuation;
+		frame.continuationBase	= index;
+		
+		frame.canYield = frame.fromLua && owner.getCallFrame(-2).canYield;
+		frame.setTop(index + argCount +1);
+		
+		int cReturnBase	= frame.localBase + index;
+		int cLocalBase	= cReturnBase +1;
+		
+		Object func = frame.get(index);
+		
+		if ( !isCallable(func) ){ //Allow __call override
+			Object meta = getMetaValue(func, "__call");
+			
+			if ( !isCallable(meta) )
+				return failContinuation(frame, new LuaException("attempt to call a " + platform.getTypename(func) + " value"));
+			
+			func = meta;
+			
+			cLocalBase = cReturnBase;
+			argCount++;
+		}
+		
+		if ( func instanceof LuaClosure ){
+			CallFrame callFrame = owner.pushCallFrame((LuaClosure) func, cLocalBase, cReturnBase, argCount);
+				callFrame.fromLua	= true;
+				callFrame.canYield	= frame.canYield;
+			
+			callFrame.init();
+			return CONTINUE;
+		}
+		
+		int retCount;
+		
+		try {
+			retCount = callJava((Callable) func, cLocalBase, cReturnBase, argCount, true);
+		} catch ( RuntimeException err ){
+			while ( owner.getCurrentFrame() != frame ){ //Pop the frames of the call
+				owner.addStackTrace( owner.getCurrentFrame() );
+				owner.popCallFrame();
+			}
+			
+			return failContinuation(frame, err);
+		}
+		
+		if ( retCount == CONTINUE || coroutine != owner ) //Yielded, the results arrive on resume
+			return CONTINUE;
+		
+		return resumeContinuation(frame);
+	}
+	
+	private int resumeContinuation( CallFrame frame ){
+		Continuation continuation = frame.continuation;
+		
+		frame.continuation	= null;
+		frame.canYield		= false;
+		
+		return continuation.resume(frame, frame.getTop() - frame.continuationBase);
+	}
+	private int failContinuation( CallFrame frame, RuntimeException err ){
+		Continuation continuation = frame.continuation;
+		
+		frame.continuation	= null;
+		frame.canYield		= false;
+		
+		frame.closeUpvalues(frame.continuationBase);
+		frame.setTop(frame.continuationBase);
+		
+		int retCount = continuation.fail(frame, err);
+		
+		frame.coroutine.resetStackTrace();
+		return retCount;
+	}
+	
 	public Object call( Object func, Object ... args ){
 		int top 		= coroutine.getTop();
 		int argCount	= args.length;
@@ -100,7 +297,7 @@ public class LuaThread {
 		
 		System.arraycopy(args, 0, coroutine.stack, top +1, argCount);
 		
-		Object result = ( call(argCount) >= 1 ? coroutine.stack[top] : null );
+		Object result = ( call(argCount) >= 1 ? LuaRope.flatten(coroutine.stack[top]) : null );
 		
 		coroutine.setTop(top);
 		return result;
@@ -121,7 +318,8 @@ public class LuaThread {
 			rets = Math.min(rets, limit);
 
 		Object[] values = new Object[rets];
-		System.arraycopy(coroutine.stack, top, values, 0, rets);
+		for ( int index = 0; index < rets; index++ )
+			values[index] = LuaRope.flatten( coroutine.stack[top + index] );
 		
 		coroutine.setTop(top);
 		return values;
@@ -143,7 +341,7 @@ public class LuaThread {
 		int argCount 		= args.length;
 		
 		if ( nextFrame.argCount == -1 ) //First time resuming, setup stack!
-			nextFrame.setTop(argCount);
+			nextFrame.setTop(0);
 		
 		for ( int index = 0; index < argCount; index++ ) //Push arguments
 			nextFrame.push( args[index] );
@@ -153,7 +351,7 @@ public class LuaThread {
 			nextFrame.init();
 		}
 		
-		if ( nextFrame.restoreTop )
+		if ( nextFrame.restoreTop && nextFrame.isLua() )
 			nextFrame.setTop( nextFrame.closure.proto.maxStacksize );
 		
 		this.coroutine = thread;
@@ -166,7 +364,7 @@ public class LuaThread {
 		
 		Object[] returns  = new Object[retCount];
 		for ( int index = 0; index < retCount; index++ )
-			returns[index] = frame.get(index);
+			returns[index] = LuaRope.flatten( frame.get(index) );
 		
 		//Earse values, and the frame
 		coroutine.setTop(top);
@@ -175,6 +373,13 @@ public class LuaThread {
 		return returns;
 	}
 	
+	/**
+	 * @return The scheduler running the coroutines of the thread, or null
+	 */
+	public Scheduler getScheduler(){
+		return scheduler;
+	}
+	
 	/*
 	 * VM Core
 	 */
@@ -195,22 +400,243 @@ public class LuaThread {
 		return meta1;
 	}
 	
-	private int callJava( Callable func, int localBase, int returnBase, int argCount ){
-		Coroutine caller	= coroutine; //Handle coroutine changes after a java call
-		CallFrame frame 	= caller.pushJavaFrame(func, localBase, returnBase, argCount);
+	private int callJava( Callable func, int localBase, int returnBase, int argCount, boolean fromLua ){
+		CallFrame frame = coroutine.pushJavaFrame(func, localBase, returnBase, argCount);
+			frame.fromLua = fromLua;
 		
 		int retCount = func.call(frame, argCount);
 		
+		if ( retCount != CONTINUE ) //Otherwise the frame stays until its continuation returns
+			returnJava(frame, retCount);
+	
+		return retCount;
+	}
+	
+	private static void returnJava( CallFrame frame, int retCount ){
 		int top = frame.getTop();
 		int actualReturnBase = top - retCount;
 
-		int diff = returnBase - localBase;
+		int diff = frame.returnBase - frame.localBase;
 		frame.stackCopy(actualReturnBase, diff, retCount);
 		frame.setTop(retCount + diff);
 
-		caller.popCallFrame();
+		frame.coroutine.popCallFrame(); //Handle coroutine changes after a java call
+	}
 	
-		return retCount;
+	/**
+	 * Calls a metamethod for the instruction of a Lua frame. Lua functions are called
+	 * in the loop, so they can yield: PENDING is returned, and the frame finishes the
+	 * instruction once the function returns. (See finishPending)
+	 */
+	private Object callMeta( CallFrame caller, Object meta, Object ... args ){
+		if ( caller == null || !(meta instanceof LuaClosure) )
+			return call(meta, args);
+		
+		int base		= caller.localBase + caller.closure.proto.maxStacksize;
+		int argCount	= args.length;
+		
+		coroutine.setTop(base + argCount +1);
+		coroutine.stack[base] = meta;
+		
+		System.arraycopy(args, 0, coroutine.stack, base +1, argCount);
+		
+		CallFrame frame = coroutine.pushCallFrame((LuaClosure) meta, base +1, base, argCount);
+			frame.fromLua	= true;
+			frame.canYield	= caller.canYield;
+		
+		frame.init();
+		return PENDING;
+	}
+	
+	private CallFrame await( CallFrame frame, int pending, int arg ){
+		frame.pending		= pending;
+		frame.pendingArg	= arg;
+		
+		return coroutine.getCurrentFrame();
+	}
+	
+	private static void finishPending( CallFrame frame ){
+		int pending	= frame.pending;
+		int arg		= frame.pendingArg;
+		
+		frame.pending = 0;
+		
+		int resultIndex	= frame.closure.proto.maxStacksize;
+		Object result	= ( frame.getTop() > resultIndex ? frame.get(resultIndex) : null );
+		
+		switch( pending ){
+			case PENDING_STORE:
+				frame.setPrototypeStacksize();
+				frame.set(arg, result);
+				break;
+				
+			case PENDING_TEST:
+				frame.setPrototypeStacksize();
+				
+				if ( ( LuaUtil.toBoolean(result) != frame.pendingNot ) != (arg == 1) )
+					frame.pc++;
+				
+				frame.pendingNot = false;
+				break;
+				
+			case PENDING_DISCARD:
+				frame.setPrototypeStacksize();
+				break;
+				
+			case PENDING_TFORLOOP: {
+				int A = arg & 0xFF;
+				int C = arg >>> 8;
+				
+				frame.clearFromIndex(A + C +3);
+				frame.setPrototypeStacksize();
+				
+				Object value = frame.get(A + 3);
+				if ( value != null ) {
+					frame.set(A +2, value);
+				} else {
+					frame.pc++;
+				}
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the frame to run after the frame on top returned, or the coroutine changed.
+	 * Java frames waiting for the results of callk are continued on the way.
+	 * 
+	 * @return The Lua frame to run, or null when the loop should return to Java
+	 */
+	private CallFrame continueFrame(){
+		while ( true ){
+			CallFrame frame = coroutine.getCurrentFrame();
+			
+			if ( frame == null )
+				return null;
+			
+			if ( frame.isLua() ){
+				if ( frame.pending != 0 )
+					finishPending(frame);
+				
+				return frame;
+			}
+			
+			if ( frame.continuation == null )
+				return null; //Got back to java
+			
+			int retCount = resumeContinuation(frame);
+			
+			if ( retCount != CONTINUE ){
+				returnJava(frame, retCount);
+				
+				if ( !frame.fromLua )
+					return null;
+			}
+		}
+	}
+	
+	/**
+	 * Unwinds the frames after an error, until a continuation, or the end of a coroutine
+	 * handles it. The error is thrown on if it reaches a frame called from Java.
+	 * 
+	 * @return The Lua frame to run, or null when the loop should return to Java
+	 */
+	private CallFrame recover( RuntimeException err ){
+		while ( true ){
+			CallFrame frame = coroutine.getCurrentFrame();
+			
+			if ( frame == null ){ //Reached the bottom of a coroutine, return to the parent
+				Coroutine parent = coroutine.getParent();
+				
+				if ( parent == null ){
+					coroutine.closeUpvalues(0);
+					throw err;
+				}
+				
+				CallFrame nextFrame = parent.getCurrentFrame();
+				
+				nextFrame.push( Boolean.FALSE );
+				nextFrame.push( LuaUtil.getExceptionCause(err) );
+				nextFrame.push( coroutine.getStackTrace() );
+				
+				coroutine.closeUpvalues(0);
+				coroutine.resetStackTrace();
+				coroutine.detach();
+				
+				recycle(coroutine);
+				coroutine = parent;
+				
+				return continueFrame();
+			}
+			
+			if ( frame.continuation != null ){ //A java frame waiting for a callk
+				int retCount;
+				
+				try {
+					retCount = failContinuation(frame, err);
+				} catch ( RuntimeException rethrown ){
+					err = rethrown;
+					
+					coroutine.addStackTrace(frame);
+					coroutine.popCallFrame();
+					
+					if ( !frame.fromLua )
+						throw err;
+					
+					continue;
+				}
+				
+				if ( retCount != CONTINUE ){
+					returnJava(frame, retCount);
+					
+					if ( !frame.fromLua )
+						return null;
+				}
+				
+				return continueFrame();
+			}
+			
+			boolean fromJava = frame.isLua() && !frame.fromLua; //Before the pop clears the closure
+			
+			coroutine.addStackTrace(frame);
+			coroutine.popCallFrame();
+			
+			if ( fromJava ){ //Called from java, pass the error on
+				frame.closeUpvalues(0);
+				throw err;
+			}
+		}
+	}
+	
+	/**
+	 * Called when the budget of the running coroutine runs out. (See Coroutine.setBudget)
+	 * Only called where the top of the frame is at its resting place: On loop back edges,
+	 * and the entry of functions, so the frame can be resumed from there.
+	 * 
+	 * @return True if the coroutine yielded, and the loop has to continue with another frame
+	 */
+	private boolean exhausted( CallFrame frame ){
+		Coroutine current = coroutine;
+		
+		if ( current.slice == 0 ){ //Unlimited, just wrapped around
+			current.budget = Integer.MAX_VALUE;
+			return false;
+		}
+		
+		if ( scheduler != null && scheduler.getCurrent() == current ){
+			if ( !frame.canYield ){ //Called from java, preempted at the next check it can yield at
+				current.budget = 0;
+				return false;
+			}
+			
+			current.budget = current.slice;
+			
+			frame.restoreTop = true; //Drop the values it is resumed with
+			Coroutine.yield(frame, frame, 0);
+			return true;
+		}
+		
+		throw new LuaException("instruction budget exceeded");
 	}
 	
 	private Object getRK( CallFrame frame, int index, Prototype proto ){
@@ -222,8 +648,33 @@ public class LuaThread {
 			return proto.constants[cindex];
 	}
 	
+	private static void checkForLoop( CallFrame frame, int A ){
+		if ( !(frame.get(A) instanceof Double) )
+			throw new LuaException("'for' initial value must be a number");
+		if ( !(frame.get(A +1) instanceof Double) )
+			throw new LuaException("'for' limit must be a number");
+		if ( !(frame.get(A +2) instanceof Double) )
+			throw new LuaException("'for' step must be a number");
+	}
+	
+	private static boolean isConcatenable( Object value ){
+		return value instanceof Double || LuaUtil.isString(value);
+	}
+	
+	private static boolean isByteConcat( CallFrame frame, int from, int to ){
+		for ( int index = from; index <= to; index++ ){
+			if ( !(frame.get(index) instanceof LuaString) )
+				return false;
+		}
+		
+		return true;
+	}
+	
 	private void luaMainloop(){
-		CallFrame frame	= coroutine.getCurrentFrame();
+		CallFrame frame	= continueFrame();
+		
+		if ( frame == null )
+			return;
 		
 		LuaClosure closure	= frame.closure;
 		Prototype proto		= closure.proto;
@@ -281,12 +732,26 @@ public class LuaThread {
 						frame.set(A, closure.upvalues[B].getValue());
 						break;
 					
-					case OP_GETGLOBAL: //A Bx	R(A):= Gbl[Kst(Bx)]
+					case OP_GETGLOBAL: { //A Bx	R(A):= Gbl[Kst(Bx)]
 						A = getA8(code);
 						B = getBx(code);
 						
-						frame.set(A, tableGet(closure.env, proto.constants[B]));
+						Object value = tableGet(closure.env, proto.constants[B], frame);
+						
+						if ( value == PENDING ){ //Called __index in the loop
+							frame	= await(frame, PENDING_STORE, A);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
+						
+						frame.set(A, value);
 						break;
+					}
 					
 					case OP_GETTABLE: {//A B C	R(A):= R(B)[RK(C)]
 						A = getA8(code);
@@ -302,7 +767,20 @@ public class LuaThread {
 						if ( !isTable && getMetaValue(table, "__index") == null )
 							throw LuaUtil.slotError(frame, B, "attempt to index");
 						
-						frame.set(A, tableGet(table, key));
+						Object value = tableGet(table, key, frame);
+						
+						if ( value == PENDING ){
+							frame	= await(frame, PENDING_STORE, A);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
+						
+						frame.set(A, value);
 						break;
 					}
 					
@@ -310,7 +788,16 @@ public class LuaThread {
 						A = getA8(code);
 						B = getBx(code);
 
-						tableSet(closure.env, proto.constants[B], frame.get(A));
+						if ( tableSet(closure.env, proto.constants[B], frame.get(A), frame) == PENDING ){
+							frame	= await(frame, PENDING_DISCARD, 0);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
 						break;
 						
 					case OP_SETUPVAL: //A B		UpValue[B]:= R(A)
@@ -336,7 +823,16 @@ public class LuaThread {
 						if ( !isTable && getMetaValue(table, "__index") == null )
 							throw LuaUtil.slotError(frame, A, "attempt to index");
 						
-						tableSet(table, key, value);
+						if ( tableSet(table, key, value, frame) == PENDING ){
+							frame	= await(frame, PENDING_DISCARD, 0);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
 						break;
 					}
 					
@@ -356,8 +852,22 @@ public class LuaThread {
 						Object table 	= frame.get(B);
 						Object key 		= getRK(frame, C, proto);
 
-						frame.set(A, 	tableGet(table, key));
 						frame.set(A +1, table);
+						
+						Object value = tableGet(table, key, frame);
+						
+						if ( value == PENDING ){
+							frame	= await(frame, PENDING_STORE, A);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
+						
+						frame.set(A, value);
 						break;
 					}
 					
@@ -374,8 +884,8 @@ public class LuaThread {
 						Object o1 = getRK(frame, B, proto);
 						Object o2 = getRK(frame, C, proto);
 						
-						Double d1 = (o1 instanceof Double ? (Double) o1 : null);
-						Double d2 = (o2 instanceof Double ? (Double) o2 : null);
+						Double d1 = LuaUtil.rawToNumber(o1); //Strings are converted too
+						Double d2 = LuaUtil.rawToNumber(o2);
 						
 						if ( d1 != null && d2 != null ){
 							//Primitive math
@@ -393,7 +903,7 @@ public class LuaThread {
 								case OP_POW:	ret = Math.pow(v1, v2);	break;
 							}
 							
-							frame.set(A, Double.valueOf(ret));
+							frame.set(A, LuaUtil.box(ret));
 						} else {
 							//Meta math
 							String metaKey = getMetaOp(inst);
@@ -412,7 +922,20 @@ public class LuaThread {
 									throw LuaUtil.slotError(frame, C, "attempt to perform attrimetric on");
 							}
 								
-							frame.set(A, call(meta, o1, o2));
+							Object value = callMeta(frame, meta, o1, o2);
+							
+							if ( value == PENDING ){
+								frame	= await(frame, PENDING_STORE, A);
+								closure	= frame.closure;
+								
+								proto	= closure.proto;
+								opcodes	= proto.code;
+								
+								returnBase = frame.returnBase;
+								break;
+							}
+							
+							frame.set(A, value);
 						}
 						
 						break;
@@ -425,14 +948,27 @@ public class LuaThread {
 						Object value = frame.get(B);
 
 						if ( value instanceof Double ){
-							frame.set(A, Double.valueOf( -((Double) value)) );
+							frame.set(A, LuaUtil.box( -((Double) value)) );
 						} else {
 							Object meta = getMetaValue(value, "__unm");
 							
 							if ( meta == null )
 								throw LuaUtil.slotError(frame, B, "attempt to perform attrimetric on");
 							
-							frame.set(A, call(meta, value));
+							value = callMeta(frame, meta, value);
+							
+							if ( value == PENDING ){
+								frame	= await(frame, PENDING_STORE, A);
+								closure	= frame.closure;
+								
+								proto	= closure.proto;
+								opcodes	= proto.code;
+								
+								returnBase = frame.returnBase;
+								break;
+							}
+							
+							frame.set(A, value);
 						}
 						break;
 					}
@@ -451,14 +987,27 @@ public class LuaThread {
 						Object value = frame.get(B);
 						
 						if ( value instanceof LuaTable ){
-							frame.set(A, Double.valueOf( ((LuaTable) value).size() ) );
+							frame.set(A, LuaUtil.box( ((LuaTable) value).size() ) );
 						} else {
 							Object meta = getMetaValue(value, "__len");
 							
 							if ( meta == null )
 								throw LuaUtil.slotError(frame, B, "attempt to get length of");
 							
-							frame.set(A, call(meta, value));
+							value = callMeta(frame, meta, value);
+							
+							if ( value == PENDING ){
+								frame	= await(frame, PENDING_STORE, A);
+								closure	= frame.closure;
+								
+								proto	= closure.proto;
+								opcodes	= proto.code;
+								
+								returnBase = frame.returnBase;
+								break;
+							}
+							
+							frame.set(A, value);
 						}
 						
 						break;
@@ -470,32 +1019,25 @@ public class LuaThread {
 						C = getC9(code);
 
 						Object result = "";
-						String string;
 						
-						for ( int index = B; index <= C; index++ ){ //Optimize for multi string concat
+						if ( isByteConcat(frame, B, C) ){ //Keep binary data as bytes
+							frame.set(A, LuaString.concat(coroutine.stack, frame.localBase + B, frame.localBase + C));
+							break;
+						}
+						
+						for ( int index = B; index <= C; index++ ){
 							Object concat = frame.get(index); 
 							
-							string = LuaUtil.rawToString(concat);
-							
-							if ( result instanceof String && string != null ){ 
-								StringBuilder sb = new StringBuilder( (String) result );
+							if ( isConcatenable(result) && isConcatenable(concat) ){ //Optimize for multi string concat
+								int end = index;
 								
-								while( string != null ){
-									sb.append( string );
-									
-									if ( ++index > C ){
-										concat = null;
-										break;
-									}
-									
-									concat 	= frame.get(index);
-									string	= LuaUtil.rawToString(concat);
-								}
+								while( end < C && isConcatenable(frame.get(end +1)) )
+									end++;
 								
-								result = sb.toString();
-							}
-							
-							if ( concat != null ){
+								//Long results stay ropes until used, see LuaRope
+								result	= LuaRope.concat(result, coroutine.stack, frame.localBase + index, frame.localBase + end);
+								index	= end;
+							} else {
 								Object meta = getMetaValue(concat, "__concat");
 								
 								if ( !isCallable(meta) )
@@ -510,7 +1052,26 @@ public class LuaThread {
 					}
 					
 					case OP_JMP: //sBx		pc+=sBx
-						frame.pc += getSBx(code);
+						B = getSBx(code);
+						
+						frame.pc += B;
+						
+						if ( B < 0 && --coroutine.budget <= 0 && exhausted(frame) ){ //Back edge, preempted
+							frame = continueFrame();
+							
+							if ( frame == null )
+								return;
+							
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase	= frame.returnBase;
+							
+							if ( frame.restoreTop )
+								frame.setTop( proto.maxStacksize );
+						}
 						break;
 					
 					case OP_EQ: //A B C		if ((RK(B) == RK(C)) ~= A) then pc++
@@ -523,7 +1084,20 @@ public class LuaThread {
 						Object o1 = getRK(frame, B, proto);
 						Object o2 = getRK(frame, C, proto);
 						
-						if ( compare(o1, o2, inst) != (A == 1) )
+						Object result = compare(o1, o2, inst, frame);
+						
+						if ( result == PENDING ){
+							frame	= await(frame, PENDING_TEST, A);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
+						
+						if ( (Boolean) result != (A == 1) )
 							frame.pc++;
 					
 						break;
@@ -601,12 +1175,29 @@ public class LuaThread {
 							opcodes	= proto.code;
 							
 							returnBase = callFrame.returnBase;
+							
+							if ( --coroutine.budget <= 0 && exhausted(frame) ){ //Preempted on entry
+								frame = continueFrame();
+								
+								if ( frame == null )
+									return;
+								
+								closure	= frame.closure;
+								
+								proto	= closure.proto;
+								opcodes	= proto.code;
+								
+								returnBase	= frame.returnBase;
+								
+								if ( frame.restoreTop )
+									frame.setTop( proto.maxStacksize );
+							}
 						} else if ( func instanceof Callable ){
-							callJava((Callable) func, cLocalBase, cReturnBase, cArgCount);
+							callJava((Callable) func, cLocalBase, cReturnBase, cArgCount, true);
 							
-							frame = coroutine.getCurrentFrame();
+							frame = continueFrame();
 
-							if ( frame == null || !frame.isLua() )
+							if ( frame == null )
 								return; //Got back from a yield to java
 							
 							closure	= frame.closure;
@@ -641,7 +1232,7 @@ public class LuaThread {
 						
 						//Calculate stack offsets
 						int base 		= frame.localBase;
-						int cLocalBase	= returnBase +1;
+						int shift		= 1;
 						
 						coroutine.closeUpvalues(base);
 
@@ -653,47 +1244,62 @@ public class LuaThread {
 							if ( func != meta ){
 								func = meta;
 								
-								cLocalBase = returnBase;
+								shift = 0;
 								cArgCount++;
 							}
 						}
 						
-						coroutine.stackCopy(base + A, returnBase, cArgCount +1);
-						coroutine.setTop(returnBase + cArgCount + 1);
-
 						if ( func instanceof LuaClosure ){
-							frame.localBase	= cLocalBase;
+							coroutine.stackCopy(base + A, returnBase, cArgCount +1);
+							coroutine.setTop(returnBase + cArgCount + 1);
+							
+							frame.localBase	= returnBase + shift;
 							frame.argCount	= cArgCount;
 							
 							frame.closure	= (LuaClosure) func;
 							frame.init();
+							
+							if ( --coroutine.budget <= 0 && exhausted(frame) ){ //Preempted on entry
+								frame = continueFrame();
+								
+								if ( frame == null )
+									return;
+							}
 						} else if ( func instanceof Callable ){
 							Coroutine caller = coroutine;
 							
-							callJava((Callable) func, cLocalBase, returnBase, cArgCount);
-							
-							frame = coroutine.getCurrentFrame();
-							caller.popCallFrame();
+							//Called in place, like OP_CALL: If the function yields, or waits for a continuation,
+							//the OP_RETURN following the tail call returns the values once they are in.
+							int retCount = callJava((Callable) func, base + A + shift, base + A, cArgCount, true);
 							
-							if ( caller != coroutine ) {
-								if ( caller.isDead() ){ //Handle implicit yields
-									if ( caller == root ){
-										//Umm, yielding the root?
-										throw new IllegalStateException("Implicit yield in root");
-									} else if ( coroutine.getParent() == caller ) { //Returning back to parent
-										throw new LuaException("Unimplemented implicit yield in OP_TAILCALL");
-									}	
+							if ( retCount == CONTINUE || caller != coroutine ){
+								frame = continueFrame();
+								
+								if ( frame == null )
+									return;
+							} else {
+								if ( frame.fromLua && frame.canYield && coroutine.isAtBottom() ){ //End of a coroutine, like OP_RETURN
+									frame.localBase = base + A;
+									
+									Coroutine finished = coroutine;
+									Coroutine.yield(frame, frame, retCount);
+									
+									finished.popCallFrame();
+									recycle(finished);
+								} else {
+									coroutine.stackCopy(base + A, returnBase, retCount);
+									coroutine.setTop(returnBase + retCount);
+									
+									coroutine.popCallFrame();
+									
+									if ( !frame.fromLua )
+										return;
 								}
 								
-								frame = coroutine.getCurrentFrame();
+								frame = continueFrame();
 								
-								if ( !frame.isLua() )
-									return;		
-							} else {
-								if ( !frame.fromLua )
+								if ( frame == null )
 									return;
-									
-								frame = coroutine.getCurrentFrame();
 							}
 						} else {
 							throw LuaUtil.slotError(frame, A, "attempt to call");
@@ -735,16 +1341,16 @@ public class LuaThread {
 								Coroutine.yield(frame, frame, B);
 								
 								caller.popCallFrame();
-
-								frame = coroutine.getCurrentFrame();
-								
-								if ( frame == null || !frame.isLua() ) //Return if called from java
-									return;
+								recycle(caller); //Finished
 							} else {
 								coroutine.popCallFrame();
 							}
 							
-							frame 	= coroutine.getCurrentFrame();
+							frame = continueFrame();
+							
+							if ( frame == null ) //Return if called from java
+								return;
+							
 							closure	= frame.closure;
 							
 							proto	= closure.proto;
@@ -766,16 +1372,38 @@ public class LuaThread {
 					case OP_FORLOOP: { //A sBx		R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }
 						A = getA8(code);
 
-						Double index	= (Double) frame.get(A);
-						Double limit	= (Double) frame.get(A +1);
-						Double step		= (Double) frame.get(A +2);
+						if ( !frame.verified ) //Unverified code may have modified the control values
+							checkForLoop(frame, A);
+						
+						double index	= (Double) frame.get(A);
+						double limit	= (Double) frame.get(A +1);
+						double step		= (Double) frame.get(A +2);
 							index += step;
 						
 						if ( step > 0 ? index <= limit : index >= limit ){
 							frame.pc += getSBx(code);
 							
-							frame.set(A, index);
-							frame.set(A +3, index);
+							Double boxed = LuaUtil.box(index);
+							
+							frame.set(A, boxed);
+							frame.set(A +3, boxed);
+							
+							if ( --coroutine.budget <= 0 && exhausted(frame) ){ //Back edge, preempted
+								frame = continueFrame();
+								
+								if ( frame == null )
+									return;
+								
+								closure	= frame.closure;
+								
+								proto	= closure.proto;
+								opcodes	= proto.code;
+								
+								returnBase	= frame.returnBase;
+								
+								if ( frame.restoreTop )
+									frame.setTop( proto.maxStacksize );
+							}
 						} else {
 							frame.clearFromIndex(A);
 						}
@@ -785,13 +1413,12 @@ public class LuaThread {
 						A = getA8(code);
 						B = getSBx(code);
 
-						Object index 	= frame.get(A);
-						Object step		= frame.get(A +2);
+						checkForLoop(frame, A);
 						
-						if ( !(index instanceof Double && step instanceof Double) )
-							throw new LuaException("invalid for preparation");
+						Double index	= (Double) frame.get(A);
+						Double step		= (Double) frame.get(A +2);
 						
-						frame.set(A, ((Double) index) - ((Double) step));
+						frame.set(A, LuaUtil.box(index - step));
 						frame.pc += B;
 						break;
 					}
@@ -807,6 +1434,26 @@ public class LuaThread {
 
 						frame.setTop(A +6);
 						frame.stackCopy(A, A +3, 3);
+						
+						if ( frame.get(A +3) instanceof LuaClosure ){ //Called in the loop, so the iterator can yield
+							int base = frame.localBase + A +3;
+							
+							CallFrame callFrame = coroutine.pushCallFrame((LuaClosure) frame.get(A +3), base +1, base, 2);
+								callFrame.fromLua	= true;
+								callFrame.canYield	= frame.canYield;
+								
+							callFrame.init();
+							
+							frame	= await(frame, PENDING_TFORLOOP, A | C << 8);
+							closure	= frame.closure;
+							
+							proto	= closure.proto;
+							opcodes	= proto.code;
+							
+							returnBase = frame.returnBase;
+							break;
+						}
+						
 						call(2);
 						frame.clearFromIndex(A + C +3);
 						frame.setPrototypeStacksize();
@@ -834,9 +1481,14 @@ public class LuaThread {
 						
 						int offset = (C - 1) * FIELDS_PER_FLUSH;
 
-						LuaTable table = (LuaTable) frame.get(A);
+						Object list = frame.get(A);
+						
+						if ( !frame.verified && !(list instanceof LuaTable) )
+							throw new LuaException("broken bytecode (setlist on a non table)");
+						
+						LuaTable table = (LuaTable) list;
 						for ( int index = 1; index <= B; index++ ){
-							Object key 		= Double.valueOf(offset + index);
+							Object key 		= LuaUtil.box(offset + index);
 							Object value	= frame.get(A + index);
 							
 							table.rawset(key, value);
@@ -886,69 +1538,21 @@ public class LuaThread {
 				}
 			}catch( RuntimeException err ){			
 				coroutine.beginStackTrace(frame, err);
-					
-				while( true ){ //Pop all java frames on top
-					frame = coroutine.getCurrentFrame();
-					
-					if ( frame == null || frame.isLua() )
-						break;
-					
-					coroutine.addStackTrace(frame);
-					coroutine.popCallFrame();
-				}
 				
-				boolean doThrow = true;
+				frame = recover(err);
 				
-				while( true ){
-					
-					if ( coroutine.isDead() ){ //Reached the bottom of a coroutine, nothing to pop off
-						Coroutine parent = coroutine.getParent();
-						
-						if ( parent != null ){ //Return to parent coroutine (if it has)
-							CallFrame nextFrame = parent.getCurrentFrame();
-							
-							nextFrame.push( Boolean.FALSE );
-							nextFrame.push( LuaUtil.getExceptionCause(err) );
-							nextFrame.push( coroutine.getStackTrace() );
-
-							coroutine.resetStackTrace();
-							coroutine.detach();
-							coroutine = parent;
-							
-							frame 	= coroutine.getCurrentFrame();
-							
-							if ( frame == null || !frame.isLua() )
-								return; //Return if called from java
-							
-							closure	= frame.closure;
-							
-							proto	= closure.proto;
-							opcodes	= proto.code;
-							
-							returnBase	= frame.returnBase;
-							
-							if ( frame.restoreTop )
-								frame.setTop( proto.maxStacksize );
-							
-							doThrow = false;
-						}
-						break;
-					} else {
-						frame = coroutine.getCurrentFrame();
-						
-						coroutine.addStackTrace(frame);
-						coroutine.popCallFrame();
-					}
-					
-					if ( !frame.fromLua )
-						break;
-				}
+				if ( frame == null )
+					return; //Return if called from java
 				
-				if ( frame != null ) //Close upvalues before resuming
-					frame.closeUpvalues(0);
+				closure	= frame.closure;
 				
-				if ( doThrow )
-					throw err;
+				proto	= closure.proto;
+				opcodes	= proto.code;
+				
+				returnBase	= frame.returnBase;
+				
+				if ( frame.restoreTop )
+					frame.setTop( proto.maxStacksize );
 			}
 		}
 	}
@@ -957,8 +1561,13 @@ public class LuaThread {
 	 * General
 	 */
 	public Object tableGet( Object table, Object key ){
+		return tableGet(table, key, null);
+	}
+	private Object tableGet( Object table, Object key, CallFrame caller ){
 		Object cTable = table;
 		
+		key = LuaRope.flatten(key); //Indexables may be implemented in Java
+		
 		for ( int depth = 0; depth < MAX_INDEX_RECURSION; depth++ ){
 			boolean isTable = ( cTable instanceof Indexable );
 			
@@ -977,7 +1586,7 @@ public class LuaThread {
 			}
 			
 			if ( isCallable(meta) ){
-				return call(meta, table, key);
+				return callMeta(caller, meta, table, key);
 			} else {
 				cTable = meta;
 			}
@@ -987,8 +1596,14 @@ public class LuaThread {
 	}
 	
 	public void tableSet( Object table, Object key, Object value ){
+		tableSet(table, key, value, null);
+	}
+	private Object tableSet( Object table, Object key, Object value, CallFrame caller ){
 		Object cTable = table;
 		
+		key		= LuaRope.flatten(key); //Indexables may be implemented in Java
+		value	= LuaRope.flatten(value);
+		
 		for ( int depth = 0; depth < MAX_INDEX_RECURSION; depth++ ){
 			Object meta = null;
 			
@@ -998,7 +1613,7 @@ public class LuaThread {
 				//If set or __newindex == null
 				if ( tbl.rawget(key) != null || (meta = getMetaValue(cTable, "__newindex")) == null ){
 					tbl.rawset(key, value);
-					return;
+					return null;
 				}
 			} else {
 				meta = getMetaValue(cTable, "__newindex");
@@ -1008,8 +1623,7 @@ public class LuaThread {
 			}
 			
 			if ( isCallable(meta) ){
-				call(meta, table, key, value);
-				return;
+				return callMeta(caller, meta, table, key, value);
 			} else {
 				cTable = meta;
 			}
@@ -1019,23 +1633,32 @@ public class LuaThread {
 	}
 
 	public boolean compare( Object a, Object b, int opcode ){
+		return compare(a, b, opcode, null) == Boolean.TRUE;
+	}
+	
+	/**
+	 * @return The result as a Boolean, or PENDING when waiting for a metamethod
+	 */
+	private Object compare( Object a, Object b, int opcode, CallFrame caller ){
 		switch( opcode ){
 			case OP_EQ:			
 				
 				if ( a == null || b == null ) //Speed up nil comparison
 					return a == b;
 				
-				if ( a instanceof Double && b instanceof Double ){
-					return a.equals(b);
+				if ( a instanceof Double && b instanceof Double ){ //Not equals: -0 == 0, and NaN ~= NaN
+					return ((Double) a).doubleValue() == ((Double) b).doubleValue();
 				} else if ( a instanceof String && b instanceof String ){
 					return a.equals(b);
+				} else if ( LuaUtil.isString(a) && LuaUtil.isString(b) ){ //Byte and char strings
+					return LuaString.compare((CharSequence) a, (CharSequence) b) == 0;
 				} else {
 					Object meta = getSharedMetaValue(a, b, "__eq");
 				
 					if ( meta == null )
 						return a.equals( b ); //OP_EQ shall be handled at all times
 				
-					return LuaUtil.toBoolean( call(meta, a, b) );
+					return toResult( callMeta(caller, meta, a, b), false, caller );
 				}
 				
 			case OP_LE:
@@ -1053,6 +1676,10 @@ public class LuaThread {
 					isPrimitive = true;
 					
 					compare = ((String) a).compareTo( (String) b );
+				} else if ( LuaUtil.isString(a) && LuaUtil.isString(b) ){
+					isPrimitive = true;
+					
+					compare = LuaString.compare((CharSequence) a, (CharSequence) b);
 				}
 				
 				if ( isPrimitive )
@@ -1073,7 +1700,7 @@ public class LuaThread {
 				if ( meta == null )
 					throw new LuaException( "attempt to compare a "+ platform.getTypename(a) +" with a "+ platform.getTypename(b) +" value");
 				
-				return LuaUtil.toBoolean( call(meta, a, b) ) == !isInverted;
+				return toResult( callMeta(caller, meta, a, b), isInverted, caller );
 		
 			default:
 				throw new IllegalArgumentException("bad comparison opcode");
@@ -1081,14 +1708,26 @@ public class LuaThread {
 		
 	}
 	
+	private static Object toResult( Object result, boolean isInverted, CallFrame caller ){
+		if ( result == PENDING ){
+			caller.pendingNot = isInverted;
+			return PENDING;
+		}
+		
+		return LuaUtil.toBoolean(result) != isInverted;
+	}
+	
 	public Object tostring( Object value ){
 		if ( value == null )
 			return "nil";
 
-		if ( value instanceof String )
-			return (String) value;
+		if ( LuaUtil.isString(value) )
+			return value;
+		
+		if ( value instanceof Double )
+			return LuaUtil.numberToString( (Double) value );
 		
-		if ( value instanceof Boolean || value instanceof Double )
+		if ( value instanceof Boolean )
 			return value.toString();
 		
 		if ( isCallable(value) )
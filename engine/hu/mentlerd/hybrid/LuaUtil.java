@@ -7,6 +7,44 @@ import java.util.Comparator;
 
 public class LuaUtil {
 
+	/*
+	 * Number boxes
+	 */
+	
+	/**
+	 * The range of whole numbers with shared boxes, configurable with the
+	 * hybrid.box.min and hybrid.box.max system properties
+	 */
+	public static final int BOX_MIN = Integer.getInteger("hybrid.box.min", -1024);
+	public static final int BOX_MAX = Integer.getInteger("hybrid.box.max", 65535);
+	
+	private static final Double[] BOXES = new Double[ Math.max(BOX_MAX - BOX_MIN +1, 0) ];
+	
+	static {
+		for ( int index = 0; index < BOXES.length; index++ )
+			BOXES[index] = Double.valueOf(BOX_MIN + index);
+	}
+	
+	/**
+	 * Boxes a number, whole numbers in the configured range share their boxes.
+	 * (Double.valueOf always allocates)
+	 */
+	public static Double box( int value ){
+		if ( value >= BOX_MIN && value <= BOX_MAX )
+			return BOXES[value - BOX_MIN];
+		
+		return Double.valueOf(value);
+	}
+	public static Double box( double value ){
+		int whole = (int) value;
+		
+		//Negative zero keeps its own box
+		if ( whole == value && whole >= BOX_MIN && whole <= BOX_MAX && ( whole != 0 || 1 / value > 0 ) )
+			return BOXES[whole - BOX_MIN];
+		
+		return Double.valueOf(value);
+	}
+	
 	/*
 	 * Conversion
 	 */
@@ -18,23 +56,273 @@ public class LuaUtil {
 		if ( value instanceof Double )
 			return (Double) value;
 		
-		//String tonumber
+		if ( isString(value) )
+			return parseNumber( value.toString() );
+		
 		return null;
 	}
 	
+	public static boolean isString( Object value ){
+		return value instanceof String || value instanceof LuaString || value instanceof LuaRope;
+	}
+	
 	public static String rawToString( Object value ){
 		if ( value == null )
 			return "nil";
 	
 		if ( value instanceof String )
 			return (String) value;
+		
+		if ( value instanceof LuaString || value instanceof LuaRope )
+			return value.toString();
 	
 		if ( value instanceof Double )
-			return value.toString();
+			return numberToString( (Double) value );
 		
 		return null;
 	}
 	
+	/*
+	 * Numbers
+	 */
+	private static final String[] SMALL_NUMBERS = new String[1024];
+	
+	/**
+	 * Formats a number the way Lua prints it: Whole numbers without a fraction, others
+	 * with the shortest digits that read back to the same value.
+	 */
+	public static String numberToString( double value ){
+		long whole = (long) value;
+		
+		if ( whole == value && Math.abs(value) < 1e15 ){
+			if ( whole == 0 && 1 / value < 0 )
+				return "-0";
+			
+			if ( whole >= 0 && whole < SMALL_NUMBERS.length ){ //Racing fills create equal strings
+				String cached = SMALL_NUMBERS[(int) whole];
+				
+				if ( cached == null )
+					SMALL_NUMBERS[(int) whole] = cached = Long.toString(whole);
+				
+				return cached;
+			}
+			
+			return Long.toString(whole);
+		}
+		
+		if ( Double.isNaN(value) )
+			return "nan";
+		if ( Double.isInfinite(value) )
+			return ( value > 0 ? "inf" : "-inf" );
+		
+		//Double.toString has the shortest digits, and between 1e-3, and 1e7 the same notation
+		String java	= Double.toString(value);
+		int mark	= java.indexOf('E');
+		
+		if ( mark == -1 )
+			return java;
+		
+		//Others are written like "-1.5E-7": The sign, a digit, the point, then the rest
+		int sign	= ( value < 0 ? 1 : 0 );
+		int count	= mark - sign -1;
+		
+		char[] digits = new char[count];
+		digits[0] = java.charAt(sign);
+		java.getChars(sign +2, mark, digits, 1);
+		
+		while ( count > 1 && digits[count -1] == '0' ) //"1.0E10"
+			count--;
+		
+		int exponent	= 0;
+		int index		= mark +1;
+		boolean small	= ( java.charAt(index) == '-' );
+		
+		if ( small )
+			index++;
+		
+		while ( index < java.length() )
+			exponent = exponent * 10 + ( java.charAt(index++) - '0' );
+		
+		//Move the point where Lua would put it, "%.14g" style notation
+		char[] out	= new char[count + 24];
+		int pos		= 0;
+		
+		if ( sign == 1 )
+			out[pos++] = '-';
+		
+		if ( small && exponent <= 4 ){
+			out[pos++] = '0';
+			out[pos++] = '.';
+			
+			for ( int zeros = exponent -1; zeros > 0; zeros-- )
+				out[pos++] = '0';
+			
+			System.arraycopy(digits, 0, out, pos, count);
+			return new String(out, 0, pos + count);
+		}
+		
+		if ( !small && exponent < 15 ){
+			for ( int digit = 0; digit <= exponent; digit++ )
+				out[pos++] = ( digit < count ? digits[digit] : '0' );
+			
+			if ( count > exponent +1 ){
+				out[pos++] = '.';
+				
+				System.arraycopy(digits, exponent +1, out, pos, count - exponent -1);
+				pos += count - exponent -1;
+			}
+			
+			return new String(out, 0, pos);
+		}
+		
+		out[pos++] = digits[0];
+		
+		if ( count > 1 ){
+			out[pos++] = '.';
+			
+			System.arraycopy(digits, 1, out, pos, count -1);
+			pos += count -1;
+		}
+		
+		out[pos++] = 'e';
+		out[pos++] = ( small ? '-' : '+' );
+		
+		if ( exponent < 10 )
+			out[pos++] = '0';
+		
+		String tail = Integer.toString(exponent);
+		tail.getChars(0, tail.length(), out, pos);
+		
+		return new String(out, 0, pos + tail.length());
+	}
+	
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	/**
+	 * Parses a number like luaO_str2d: Decimal, or hexadecimal (0x) notation with
+	 * optional surrounding whitespace.
+	 * 
+	 * @return The number, or null if the string is not a number
+	 */
+	public static Double parseNumber( String string ){
+		int len = string.length();
+		int pos = 0;
+		
+		while ( pos < len && isSpace(string.charAt(pos)) )
+			pos++;
+		while ( len > pos && isSpace(string.charAt(len -1)) )
+			len--;
+		
+		if ( pos == len )
+			return null;
+		
+		int start = pos;
+		boolean negative = false;
+		
+		char c = string.charAt(pos);
+		if ( c == '-' || c == '+' ){
+			negative = ( c == '-' );
+			pos++;
+		}
+		
+		//Hexadecimal
+		if ( pos +1 < len && string.charAt(pos) == '0' && ( string.charAt(pos +1) | 0x20 ) == 'x' ){
+			pos += 2;
+			
+			if ( pos == len )
+				return null;
+			
+			double value = 0;
+			
+			for ( ; pos < len; pos++ ){
+				int digit = Character.digit(string.charAt(pos), 16);
+				
+				if ( digit == -1 )
+					return null;
+				
+				value = value * 16 + digit;
+			}
+			
+			return box( negative ? -value : value );
+		}
+		
+		//Decimal: Collect up to 18 significant digits exactly
+		long mantissa	= 0;
+		int digits		= 0;
+		int scale		= 0;
+		boolean seen	= false;
+		
+		for ( ; pos < len && isDigit(string.charAt(pos)); pos++, seen = true ){
+			if ( digits < 18 ){
+				mantissa = mantissa * 10 + (string.charAt(pos) - '0');
+				
+				if ( mantissa != 0 ) digits++;
+			} else {
+				scale++;
+			}
+		}
+		
+		if ( pos < len && string.charAt(pos) == '.' ){
+			for ( pos++; pos < len && isDigit(string.charAt(pos)); pos++, seen = true ){
+				if ( digits < 18 ){
+					mantissa = mantissa * 10 + (string.charAt(pos) - '0');
+					scale--;
+					
+					if ( mantissa != 0 ) digits++;
+				}
+			}
+		}
+		
+		if ( !seen )
+			return null;
+		
+		if ( pos < len && ( string.charAt(pos) | 0x20 ) == 'e' ){
+			pos++;
+			
+			boolean negExp = false;
+			if ( pos < len && ( string.charAt(pos) == '-' || string.charAt(pos) == '+' ) )
+				negExp = ( string.charAt(pos++) == '-' );
+			
+			if ( pos == len )
+				return null;
+			
+			int exponent = 0;
+			for ( ; pos < len && isDigit(string.charAt(pos)); pos++ ){
+				if ( exponent < 100000 )
+					exponent = exponent * 10 + (string.charAt(pos) - '0');
+			}
+			
+			scale += ( negExp ? -exponent : exponent );
+		}
+		
+		if ( pos != len )
+			return null;
+		
+		//Clinger's fast path: Both the digits, and the power of ten are exact doubles
+		if ( mantissa < (1L << 53) && Math.abs(scale) < POWERS_OF_TEN.length ){
+			double value = mantissa;
+			
+			if ( scale < 0 )
+				value /= POWERS_OF_TEN[-scale];
+			else
+				value *= POWERS_OF_TEN[scale];
+			
+			return box( negative ? -value : value );
+		}
+		
+		return box( Double.parseDouble( string.substring(start, len) ) );
+	}
+	
+	private static boolean isSpace( char c ){
+		return c == ' ' || ( c >= '\t' && c <= '\r' );
+	}
+	private static boolean isDigit( char c ){
+		return c >= '0' && c <= '9';
+	}
+	
 	/*
 	 * Sorting
 	 */
@@ -74,6 +362,8 @@ public class LuaUtil {
 		if ( func != null && !LuaThread.isCallable(func) )
 			throw new IllegalArgumentException("Illegal comparator function");
 		
+		table.checkWritable();
+		
 		Arrays.sort(table.array, new LuaComparator(thread, func, desc));
 	}
 	
@@ -1,7 +1,44 @@
 package hu.mentlerd.hybrid;
 
+import hu.mentlerd.hybrid.lib.LuaPattern;
+import hu.mentlerd.hybrid.lib.StringFormat;
+
 public abstract class Platform {
 	
+	private final StringPool strings = new StringPool();
+	
+	/**
+	 * Returns the pool used to share equal strings between prototypes and the
+	 * runtime. (See {@link StringPool})
+	 */
+	public StringPool getStringPool(){
+		return strings;
+	}
+	
+	public final String intern( String string ){
+		return getStringPool().intern(string);
+	}
+	
+	private final BoundedCache<String, LuaPattern> patterns = new BoundedCache<String, LuaPattern>(256);
+	
+	/**
+	 * Returns the cache of compiled string patterns, shared by every thread of the
+	 * platform. Hit and miss counts are available through the cache.
+	 */
+	public BoundedCache<String, LuaPattern> getPatternCache(){
+		return patterns;
+	}
+	
+	private final BoundedCache<String, StringFormat> formats = new BoundedCache<String, StringFormat>(256);
+	
+	/**
+	 * Returns the cache of parsed string.format formats, shared by every thread of
+	 * the platform.
+	 */
+	public BoundedCache<String, StringFormat> getFormatCache(){
+		return formats;
+	}
+	
 	//Abstract layer
 	public abstract LuaTable getClassMetatable( Class<?> clazz );
 	
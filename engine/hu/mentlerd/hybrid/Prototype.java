@@ -2,6 +2,13 @@ package hu.mentlerd.hybrid;
 
 public final class Prototype {
 	
+	/**
+	 * Compiles the code of a prototype on demand. (See {@link Prototype#defer})
+	 */
+	public static interface Body {
+		public void compile( Prototype into );
+	}
+	
 	public static class LocalVar {
 		public String name;
 		
@@ -32,11 +39,57 @@ public final class Prototype {
 		
 	public String source;
 	
+	//Set by BytecodeVerifier once the code is proven to be well formed
+	public boolean verified;
+	
 	//Debug info
 	public int[] lines;
 	public LocalVar[] locals;
 	public String[] upvalues;
 	
+	//Content hash, see getHash
+	private volatile byte[] hash;
+	
+	//Lazy compilation
+	private volatile Body body;
+	
+	/**
+	 * Marks the prototype as not compiled yet. Only numUpvalues, upvalues and source
+	 * have to be valid until {@link #load()} is called, everything else is filled in
+	 * by the body.
+	 */
+	public void defer( Body body ){
+		this.body = body;
+	}
+	
+	public boolean isLoaded(){
+		return body == null;
+	}
+	
+	public synchronized void load(){
+		Body pending = body;
+		
+		if ( pending != null ){
+			pending.compile(this);
+			
+			body = null; //Publishes the compiled fields
+		}
+	}
+	
+	/**
+	 * Returns the SHA-1 hash of the bytecode of the prototype. (See {@link BytecodeManager#hash})
+	 * Equal code compiled from the same source always has the same hash, so prototypes
+	 * can be referenced by it across runs, and machines.
+	 */
+	public byte[] getHash(){
+		byte[] result = hash;
+		
+		if ( result == null )
+			hash = result = BytecodeManager.hash(this);
+		
+		return result;
+	}
+	
 	//Debug helper
 	public String findLocalName( int slot, int pc ){
 		for ( int index = 0; index < locals.length; index++ ){
@@ -0,0 +1,432 @@
+package hu.mentlerd.hybrid;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many coroutines of a thread cooperatively. (See the sched library)
+ *
+ * Only runnable coroutines are resumed on a step: Sleeping ones wait on a timer wheel,
+ * and the ones waiting for an event are parked in the queue of that event, so idle
+ * coroutines cost nothing until their time comes, or their event is signaled.
+ *
+ * Coroutines calling blocking Java code (See {@link AsyncCallable}) are suspended while
+ * the code runs on an executor, and are resumed with its results on a later step.
+ */
+public class Scheduler {
+
+	public static final int DEFAULT_RESOLUTION	= 1;
+	public static final int WHEEL_SIZE			= 256; //Power of two
+
+	protected static final int RUNNABLE	= 0;
+	protected static final int SLEEPING	= 1;
+	protected static final int WAITING	= 2;
+	protected static final int PARKED	= 3;
+
+	protected static class Task {
+		protected final Coroutine coroutine;
+
+		protected Object[] args;
+		protected int state;
+
+		protected long deadline;
+		protected Task next; //Next task in the same wheel slot
+
+		protected Task( Coroutine coroutine, Object[] args ){
+			this.coroutine	= coroutine;
+			this.args		= args;
+		}
+	}
+
+	/**
+	 * A coroutine suspended by {@link Scheduler#park(CallFrame)}, waiting to be woken
+	 */
+	public class Ticket {
+		protected final Task task;
+		protected boolean woken;
+
+		protected Ticket( Task task ){
+			this.task = task;
+		}
+
+		/**
+		 * Queues the coroutine to be resumed with the values on a later step, may be
+		 * called from any thread.
+		 *
+		 * @return False if the coroutine was already woken
+		 */
+		public synchronized boolean wake( Object ... values ){
+			if ( woken )
+				return false;
+
+			woken		= true;
+			task.args	= ( values != null ? values : NO_ARGS );
+
+			completions.add(task);
+			return true;
+		}
+	}
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	protected final LuaThread thread;
+
+	protected final ArrayDeque<Task> runQueue = new ArrayDeque<Task>();
+	protected final HashMap<Object, ArrayDeque<Task>> waitQueues = new HashMap<Object, ArrayDeque<Task>>();
+	
+	//Parked tasks, queued by the executor threads once their results are in
+	protected final LinkedBlockingQueue<Task> completions = new LinkedBlockingQueue<Task>();
+
+	protected final Task[] wheel = new Task[WHEEL_SIZE];
+	protected final int resolution;
+
+	protected final long epoch = System.nanoTime();
+	protected long tick;
+
+	protected int sleeping;
+	protected int waiting;
+	protected int parked;
+
+	protected Task current;
+
+	protected int slice; //Budget of the spawned coroutines, zero when unlimited
+
+	public Scheduler( LuaThread thread ){
+		this(thread, DEFAULT_RESOLUTION);
+	}
+
+	/**
+	 * @param resolution The length of a timer tick in milliseconds
+	 */
+	public Scheduler( LuaThread thread, int resolution ){
+		if ( resolution < 1 )
+			throw new IllegalArgumentException("Illegal timer resolution");
+
+		this.thread		= thread;
+		this.resolution	= resolution;
+
+		thread.scheduler = this;
+	}
+
+	/**
+	 * @return The milliseconds elapsed since the scheduler was created
+	 */
+	public long now(){
+		return ( System.nanoTime() - epoch ) / 1000000L;
+	}
+
+	/**
+	 * Sets the budget of the coroutines spawned from now on. Coroutines running out of
+	 * their budget yield, and wait for the next step, so a busy coroutine can not hold
+	 * up the others. (See {@link Coroutine#setBudget})
+	 *
+	 * @param slice The budget, or zero for no limit
+	 */
+	public void setBudget( int slice ){
+		if ( slice < 0 )
+			throw new IllegalArgumentException("Illegal budget");
+
+		this.slice = slice;
+	}
+
+	/**
+	 * Creates a coroutine running the function, and queues it to be resumed with the
+	 * arguments on the next step
+	 */
+	public Coroutine spawn( LuaClosure function, Object ... args ){
+		Coroutine coroutine = thread.newCoroutine(function.env, function);
+			coroutine.setBudget(slice);
+
+		runQueue.add( new Task(coroutine, args) );
+		return coroutine;
+	}
+
+	/**
+	 * Wakes every coroutine waiting for the event, they are resumed with the values
+	 * on the next step.
+	 *
+	 * @return The count of coroutines woken
+	 */
+	public int signal( Object event, Object ... values ){
+		ArrayDeque<Task> queue = waitQueues.remove( toKey(event) );
+
+		if ( queue == null )
+			return 0;
+
+		int count = queue.size();
+
+		for ( Task task : queue ){
+			task.state	= RUNNABLE;
+			task.args	= values;
+
+			runQueue.add(task);
+		}
+
+		waiting -= count;
+		return count;
+	}
+
+	/*
+	 * Suspending, called from the functions of the running task
+	 */
+	public void sleep( CallFrame frame, long millis ){
+		Task task = getTask(frame);
+
+		long deadline = ( now() + Math.max(millis, 0) + resolution -1 ) / resolution;
+
+		if ( deadline <= tick ){ //Already due, just give way to the others
+			suspend(task, frame);
+			return;
+		}
+
+		int slot = (int) ( deadline & (WHEEL_SIZE -1) );
+
+		task.state		= SLEEPING;
+		task.deadline	= deadline;
+
+		task.next	= wheel[slot];
+		wheel[slot]	= task;
+
+		sleeping++;
+		suspend(task, frame);
+	}
+
+	public void await( CallFrame frame, Object event ){
+		Task task	= getTask(frame);
+		Object key	= toKey(event);
+
+		ArrayDeque<Task> queue = waitQueues.get(key);
+
+		if ( queue == null )
+			waitQueues.put(key, queue = new ArrayDeque<Task>());
+
+		task.state = WAITING;
+		queue.add(task);
+
+		waiting++;
+		suspend(task, frame);
+	}
+
+	/**
+	 * Suspends the running coroutine until the job finishes on the executor. The
+	 * coroutine is resumed with the values returned by the job, or with nil, and the
+	 * message of the error thrown by it.
+	 */
+	public void park( CallFrame frame, Executor executor, final java.util.concurrent.Callable<Object[]> job ){
+		final Ticket ticket = park(frame);
+
+		executor.execute(new Runnable(){
+			public void run(){
+				Object[] values;
+
+				try {
+					values = job.call();
+				} catch ( Throwable err ){
+					values = new Object[]{ null, String.valueOf(LuaUtil.getExceptionCause(err)) };
+				}
+
+				ticket.wake(values);
+			}
+		});
+	}
+
+	/**
+	 * Suspends the running coroutine until the returned ticket is woken. (Usually by
+	 * another thread, the scheduler keeps running the other coroutines meanwhile)
+	 */
+	public Ticket park( CallFrame frame ){
+		Task task = getTask(frame);
+
+		task.state = PARKED;
+		parked++;
+
+		suspend(task, frame); //Before the ticket is handed out, it overwrites the arguments
+		return new Ticket(task);
+	}
+
+	public void yield( CallFrame frame ){
+		suspend( getTask(frame), frame );
+	}
+
+	protected Task getTask( CallFrame frame ){
+		Task task = current;
+
+		if ( task == null || task.coroutine != frame.coroutine )
+			throw new LuaException("not called from a scheduled coroutine");
+
+		return task;
+	}
+
+	protected void suspend( Task task, CallFrame frame ){
+		task.args = NO_ARGS;
+
+		Coroutine.yield(task.coroutine.getCallFrame(-2), frame, 0);
+	}
+
+	protected Object toKey( Object event ){
+		if ( event == null )
+			throw new LuaException("event can not be nil");
+
+		if ( LuaUtil.isString(event) ) //Equal strings, equal events
+			return event.toString();
+
+		return event;
+	}
+
+	/*
+	 * Running
+	 */
+
+	/**
+	 * Moves the sleeping coroutines that are due to the run queue, then resumes the
+	 * coroutines that were runnable at the start of the step once.
+	 *
+	 * @return The count of coroutines resumed
+	 */
+	public int step(){
+		if ( current != null )
+			throw new IllegalStateException("Cannot step the scheduler from a scheduled coroutine");
+
+		advance( now() / resolution );
+
+		Task done;
+		while ( ( done = completions.poll() ) != null )
+			resumeParked(done);
+
+		int count = runQueue.size();
+
+		for ( int index = 0; index < count; index++ ){
+			Task task = runQueue.poll();
+
+			Object[] args	= task.args;
+			Object[] rets;
+
+			task.args = NO_ARGS; //Preempted coroutines are resumed without values
+
+			current = task;
+			try {
+				rets = thread.resume(task.coroutine, args);
+			} finally {
+				current = null;
+			}
+
+			if ( !LuaUtil.toBoolean(rets[0]) ){
+				failed(task.coroutine, rets.length > 1 ? rets[1] : null);
+			} else if ( task.state == RUNNABLE && !task.coroutine.isDead() ){
+				runQueue.add(task); //Plain yield, requeue
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Steps until every coroutine has finished, sleeping the calling thread while there
+	 * is nothing to run. Returns early if only waiting coroutines are left, as nothing
+	 * could signal them anymore.
+	 */
+	public void run(){
+		while ( !isIdle() ){
+			step();
+
+			if ( !runQueue.isEmpty() )
+				continue;
+
+			try {
+				if ( parked > 0 ){ //Wake as soon as a job finishes
+					Task done = completions.poll(resolution, TimeUnit.MILLISECONDS);
+
+					if ( done != null )
+						resumeParked(done);
+				} else if ( sleeping > 0 ){
+					Thread.sleep(resolution);
+				}
+			} catch ( InterruptedException err ){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	protected void resumeParked( Task task ){
+		task.state = RUNNABLE;
+
+		runQueue.add(task);
+		parked--;
+	}
+
+	protected void advance( long target ){
+		if ( sleeping == 0 ){ //Nothing on the wheel, skip ahead
+			tick = target;
+			return;
+		}
+
+		//Every slot is visited at most once, no matter how long the scheduler was idle
+		long last = Math.min(target, tick + WHEEL_SIZE);
+
+		while ( tick < last ){
+			tick++;
+
+			int slot	= (int) ( tick & (WHEEL_SIZE -1) );
+			Task prev	= null;
+			Task task	= wheel[slot];
+
+			while ( task != null ){
+				Task next = task.next;
+
+				if ( task.deadline <= target ){
+					if ( prev == null )
+						wheel[slot] = next;
+					else
+						prev.next = next;
+
+					task.next	= null;
+					task.state	= RUNNABLE;
+
+					runQueue.add(task);
+					sleeping--;
+				} else {
+					prev = task;
+				}
+
+				task = next;
+			}
+		}
+
+		tick = target;
+	}
+
+	/**
+	 * Called when a scheduled coroutine raises an error, the coroutine is dropped.
+	 */
+	protected void failed( Coroutine coroutine, Object cause ){
+		throw new LuaException( String.valueOf(cause), cause );
+	}
+
+	/*
+	 * State
+	 */
+	public Coroutine getCurrent(){
+		return ( current != null ? current.coroutine : null );
+	}
+
+	public int getRunnableCount(){
+		return runQueue.size();
+	}
+	public int getSleepingCount(){
+		return sleeping;
+	}
+	public int getWaitingCount(){
+		return waiting;
+	}
+	public int getParkedCount(){
+		return parked;
+	}
+
+	public boolean isIdle(){
+		return runQueue.isEmpty() && sleeping == 0 && parked == 0;
+	}
+}
@@ -0,0 +1,528 @@
+package hu.mentlerd.hybrid;
+
+import hu.mentlerd.hybrid.lib.BaseLib;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes suspended coroutines to a compact binary form, and reads them back, so idle
+ * scripts can be evicted from memory, or moved to another machine.
+ *
+ * Code is not written: Closures reference their prototypes by content hash (See
+ * {@link Prototype#getHash()}), the reading side has to register the same prototypes
+ * with {@link #addPrototype}. Java functions, and shared tables like the globals can
+ * not be written either, these are registered as permanents under the same name on
+ * both sides, and are written as a reference to that name.
+ *
+ * Everything else reachable from the coroutine is written: Its stack, call frames,
+ * upvalues, tables (Including shared, and cyclic references), closures and other
+ * coroutines. Upvalues still open on a running coroutine are written as a copy of
+ * their current value.
+ */
+public class Snapshot {
+
+	public static final byte[] SIGNATURE = new byte[]{ 27, 'L', 'u', 'S' };
+
+	public static final int VERSION = 0x01;
+
+	protected static final int TYPE_NIL			= 0;
+	protected static final int TYPE_FALSE		= 1;
+	protected static final int TYPE_TRUE		= 2;
+	protected static final int TYPE_NUMBER		= 3;
+	protected static final int TYPE_STRING		= 4;
+	protected static final int TYPE_BYTES		= 5;
+	protected static final int TYPE_REFERENCE	= 6;
+	protected static final int TYPE_PERMANENT	= 7;
+	protected static final int TYPE_TABLE		= 8;
+	protected static final int TYPE_CLOSURE		= 9;
+	protected static final int TYPE_COROUTINE	= 10;
+
+	protected static final int UPVALUE_OPEN		= 0;
+	protected static final int UPVALUE_CLOSED	= 1;
+
+	protected final Map<Object, String> permanentNames	= new IdentityHashMap<Object, String>();
+	protected final Map<String, Object> permanents		= new HashMap<String, Object>();
+
+	protected final Map<String, Prototype> prototypes	= new HashMap<String, Prototype>();
+
+	public Snapshot(){
+		//Frames of pcall waiting for their function
+		addPermanent("pcall:continuation", BaseLib.PROTECTED);
+	}
+
+	/*
+	 * Registry
+	 */
+	public void addPermanent( String name, Object value ){
+		if ( value == null )
+			throw new IllegalArgumentException("Permanent can not be nil");
+
+		permanentNames.put(value, name);
+		permanents.put(name, value);
+	}
+
+	/**
+	 * Registers the environment as "_G", with the Java functions, and the libraries in it
+	 * under their names. (Like "print", "string" or "string.format")
+	 */
+	public void addPermanents( LuaTable env ){
+		addPermanent("_G", env);
+
+		for ( Object key : env ){
+			Object value = env.rawget(key);
+
+			if ( !(key instanceof String) || value == env )
+				continue;
+
+			if ( value instanceof Callable ){
+				addPermanent((String) key, value);
+			} else if ( value instanceof LuaTable ){
+				LuaTable lib = (LuaTable) value;
+
+				addPermanent((String) key, lib);
+
+				for ( Object name : lib ){
+					Object entry = lib.rawget(name);
+
+					if ( name instanceof String && ( entry instanceof Callable || entry instanceof LuaTable ) )
+						addPermanent(key + "." + name, entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers the prototype, and the ones declared in it by their content hash
+	 */
+	public void addPrototype( Prototype proto ){
+		prototypes.put( toHex(proto.getHash()), proto );
+
+		for ( Prototype inner : proto.prototypes )
+			addPrototype(inner);
+	}
+
+	protected static String toHex( byte[] hash ){
+		StringBuilder builder = new StringBuilder(hash.length * 2);
+
+		for ( byte value : hash ){
+			builder.append( Character.forDigit((value >> 4) & 0xF, 16) );
+			builder.append( Character.forDigit(value & 0xF, 16) );
+		}
+
+		return builder.toString();
+	}
+
+	/*
+	 * Writing
+	 */
+
+	/**
+	 * Writes a suspended, or dead coroutine, and everything reachable from it
+	 */
+	public void write( OutputStream stream, Coroutine coroutine ) throws IOException{
+		if ( coroutine.thread != null )
+			throw new LuaException("cannot persist a running coroutine");
+
+		DataOutputStream output = new DataOutputStream(stream);
+
+		output.write(SIGNATURE);
+		output.write(VERSION);
+
+		new Writer(output, coroutine.platform).writeValue(coroutine);
+		output.flush();
+	}
+
+	protected class Writer {
+		protected final DataOutputStream stream;
+		protected final Platform platform;
+
+		protected final Map<Object, Integer> references = new IdentityHashMap<Object, Integer>();
+
+		protected Writer( DataOutputStream stream, Platform platform ){
+			this.stream		= stream;
+			this.platform	= platform;
+		}
+
+		protected void writeValue( Object value ) throws IOException{
+			if ( value == null ){
+				stream.write(TYPE_NIL);
+			} else if ( value instanceof Boolean ){
+				stream.write( ((Boolean) value) ? TYPE_TRUE : TYPE_FALSE );
+			} else if ( value instanceof Double ){
+				stream.write(TYPE_NUMBER);
+				stream.writeLong( Double.doubleToLongBits((Double) value) );
+			} else if ( value instanceof String || value instanceof LuaRope ){
+				stream.write(TYPE_STRING);
+				writeBytes( value.toString().getBytes(LuaString.UTF8) );
+			} else if ( value instanceof LuaString ){
+				stream.write(TYPE_BYTES);
+				writeBytes( ((LuaString) value).getBytes() );
+			} else {
+				writeObject(value);
+			}
+		}
+
+		protected void writeObject( Object value ) throws IOException{
+			Integer id = references.get(value);
+
+			if ( id != null ){
+				stream.write(TYPE_REFERENCE);
+				stream.writeInt(id);
+				return;
+			}
+
+			String name = permanentNames.get(value);
+
+			if ( name != null ){
+				stream.write(TYPE_PERMANENT);
+				writeBytes( name.getBytes(LuaString.UTF8) );
+				return;
+			}
+
+			if ( value instanceof LuaTable ){
+				stream.write(TYPE_TABLE);
+				register(value);
+
+				writeTable((LuaTable) value);
+			} else if ( value instanceof LuaClosure ){
+				stream.write(TYPE_CLOSURE);
+				register(value);
+
+				writeClosure((LuaClosure) value);
+			} else if ( value instanceof Coroutine ){
+				Coroutine coroutine = (Coroutine) value;
+
+				if ( coroutine.thread != null )
+					throw new LuaException("cannot persist a running coroutine");
+
+				stream.write(TYPE_COROUTINE);
+				register(value);
+
+				writeCoroutine(coroutine);
+			} else {
+				throw new LuaException("cannot persist a " + platform.getTypename(value) + " value (not a permanent)");
+			}
+		}
+
+		protected void register( Object value ){
+			references.put(value, references.size());
+		}
+
+		protected void writeTable( LuaTable table ) throws IOException{
+			writeValue( table.getMetatable() );
+
+			for ( Object key : table ){
+				writeValue(key);
+				writeValue(table.rawget(key));
+			}
+
+			stream.write(TYPE_NIL); //End of entries
+			stream.writeBoolean(table.isFrozen());
+		}
+
+		protected void writeClosure( LuaClosure closure ) throws IOException{
+			stream.write( closure.proto.getHash() );
+
+			writeValue(closure.env);
+
+			for ( UpValue upvalue : closure.upvalues )
+				writeUpvalue(upvalue);
+		}
+
+		protected void writeUpvalue( UpValue upvalue ) throws IOException{
+			Integer id = references.get(upvalue);
+
+			if ( id != null ){
+				stream.write(TYPE_REFERENCE);
+				stream.writeInt(id);
+				return;
+			}
+
+			register(upvalue);
+
+			Coroutine owner = upvalue.getCoroutine();
+
+			if ( owner != null && owner.thread == null ){ //Open on a suspended coroutine
+				stream.write(UPVALUE_OPEN);
+
+				writeValue(owner);
+				stream.writeInt(upvalue.getIndex());
+			} else {
+				stream.write(UPVALUE_CLOSED);
+
+				writeValue(upvalue.getValue());
+			}
+		}
+
+		protected void writeCoroutine( Coroutine coroutine ) throws IOException{
+			writeValue(coroutine.env);
+
+			stream.writeInt(coroutine.getMaxStackSize());
+			stream.writeInt(coroutine.getMaxFrameSize());
+
+			//Stack
+			int top = coroutine.getTop();
+
+			stream.writeInt(top);
+			for ( int index = 0; index < top; index++ )
+				writeValue( coroutine.stack[index] );
+
+			//Frames
+			int frameTop = coroutine.getFrameTop();
+
+			stream.writeInt(frameTop);
+			for ( int index = 0; index < frameTop; index++ )
+				writeFrame( coroutine.getCallFrame(index) );
+		}
+
+		protected void writeFrame( CallFrame frame ) throws IOException{
+			if ( frame.isLua() ){
+				writeValue(frame.closure);
+			} else {
+				writeValue(frame.function);
+			}
+
+			stream.writeInt(frame.pc);
+			stream.writeInt(frame.localBase);
+			stream.writeInt(frame.returnBase);
+			stream.writeInt(frame.argCount);
+
+			stream.writeBoolean(frame.fromLua);
+			stream.writeBoolean(frame.restoreTop);
+			stream.writeBoolean(frame.canYield);
+
+			writeValue(frame.continuation);
+			stream.writeInt(frame.continuationBase);
+
+			stream.writeInt(frame.pending);
+			stream.writeInt(frame.pendingArg);
+			stream.writeBoolean(frame.pendingNot);
+		}
+
+		protected void writeBytes( byte[] bytes ) throws IOException{
+			stream.writeInt(bytes.length);
+			stream.write(bytes);
+		}
+	}
+
+	/*
+	 * Reading
+	 */
+
+	/**
+	 * Reads a coroutine written by {@link #write}. The coroutine is suspended, and can
+	 * be resumed by any thread of the platform.
+	 */
+	public Coroutine read( InputStream stream, Platform platform ) throws IOException{
+		DataInputStream input = new DataInputStream(stream);
+
+		for ( int index = 0; index < SIGNATURE.length; index++ ){
+			if ( SIGNATURE[index] != input.read() )
+				throw new LuaException("Snapshot signature mismatch");
+		}
+
+		int version = input.read();
+		if ( VERSION != version )
+			throw new LuaException("Invalid snapshot version! Expected "+VERSION+", got "+version);
+
+		Object value = new Reader(input, platform).readValue();
+
+		if ( !(value instanceof Coroutine) )
+			throw new LuaException("Snapshot does not hold a coroutine");
+
+		return (Coroutine) value;
+	}
+
+	protected class Reader {
+		protected final DataInputStream stream;
+		protected final Platform platform;
+
+		protected final ArrayList<Object> references = new ArrayList<Object>();
+
+		protected Reader( DataInputStream stream, Platform platform ){
+			this.stream		= stream;
+			this.platform	= platform;
+		}
+
+		protected Object readValue() throws IOException{
+			int type = stream.readUnsignedByte();
+
+			switch( type ){
+				case TYPE_NIL:		return null;
+				case TYPE_FALSE:	return Boolean.FALSE;
+				case TYPE_TRUE:		return Boolean.TRUE;
+
+				case TYPE_NUMBER:
+					return LuaUtil.box( Double.longBitsToDouble( stream.readLong() ) );
+
+				case TYPE_STRING:
+					return platform.intern( new String(readBytes(), LuaString.UTF8) );
+
+				case TYPE_BYTES:
+					return LuaString.wrap( readBytes() );
+
+				case TYPE_REFERENCE:
+					return getReference( stream.readInt() );
+
+				case TYPE_PERMANENT: {
+					String name = new String(readBytes(), LuaString.UTF8);
+					Object value = permanents.get(name);
+
+					if ( value == null )
+						throw new LuaException("Unknown permanent: " + name);
+
+					return value;
+				}
+
+				case TYPE_TABLE:		return readTable();
+				case TYPE_CLOSURE:		return readClosure();
+				case TYPE_COROUTINE:	return readCoroutine();
+
+				default:
+					throw new LuaException("Unknown snapshot value type: " + type);
+			}
+		}
+
+		protected Object getReference( int id ){
+			if ( id < 0 || id >= references.size() )
+				throw new LuaException("Invalid snapshot reference: " + id);
+
+			return references.get(id);
+		}
+
+		protected LuaTable readTable() throws IOException{
+			LuaTable table = new LuaTable();
+			references.add(table);
+
+			table.setMetatable( (LuaTable) readValue() );
+
+			Object key;
+			while ( ( key = readValue() ) != null )
+				table.rawset(key, readValue());
+
+			table.frozen = stream.readBoolean(); //The reachable tables were frozen too
+
+			return table;
+		}
+
+		protected LuaClosure readClosure() throws IOException{
+			byte[] hash = new byte[20];
+			stream.readFully(hash);
+
+			Prototype proto = prototypes.get( toHex(hash) );
+
+			if ( proto == null )
+				throw new LuaException("Unknown prototype: " + toHex(hash));
+
+			LuaClosure closure = new LuaClosure(proto, null);
+			references.add(closure);
+
+			closure.env = (LuaTable) readValue();
+
+			for ( int index = 0; index < proto.numUpvalues; index++ )
+				closure.upvalues[index] = readUpvalue();
+
+			return closure;
+		}
+
+		protected UpValue readUpvalue() throws IOException{
+			int type = stream.readUnsignedByte();
+
+			if ( type == TYPE_REFERENCE )
+				return (UpValue) getReference( stream.readInt() );
+
+			int id = references.size();
+			references.add(null); //Reserve the id, the value may reference the upvalue
+
+			UpValue upvalue;
+
+			if ( type == UPVALUE_OPEN ){
+				Coroutine owner = (Coroutine) readValue();
+
+				upvalue = owner.findUpvalue( stream.readInt() );
+				references.set(id, upvalue);
+			} else {
+				upvalue = new UpValue(null, 0);
+				references.set(id, upvalue);
+
+				upvalue.setValue( readValue() );
+			}
+
+			return upvalue;
+		}
+
+		protected Coroutine readCoroutine() throws IOException{
+			Coroutine coroutine = new Coroutine(platform, null);
+			references.add(coroutine);
+
+			coroutine.env = (LuaTable) readValue();
+			coroutine.setLimits(stream.readInt(), stream.readInt());
+
+			//Stack
+			int top = stream.readInt();
+
+			coroutine.setTop(top);
+			for ( int index = 0; index < top; index++ )
+				coroutine.stack[index] = readValue();
+
+			//Frames
+			int frameTop = stream.readInt();
+
+			for ( int index = 0; index < frameTop; index++ )
+				readFrame(coroutine);
+
+			return coroutine;
+		}
+
+		protected void readFrame( Coroutine coroutine ) throws IOException{
+			Object function = readValue();
+
+			int pc			= stream.readInt();
+			int localBase	= stream.readInt();
+			int returnBase	= stream.readInt();
+			int argCount	= stream.readInt();
+
+			CallFrame frame;
+
+			if ( function instanceof LuaClosure ){
+				LuaClosure closure = (LuaClosure) function;
+
+				//Left unverified: The registers, and the pc come from the snapshot, not the verifier
+				frame = coroutine.pushCallFrame(closure, localBase, returnBase, argCount);
+			} else if ( function instanceof Callable ){
+				frame = coroutine.pushJavaFrame((Callable) function, localBase, returnBase, argCount);
+			} else {
+				throw new LuaException("Invalid snapshot frame");
+			}
+
+			frame.pc = pc;
+
+			frame.fromLua		= stream.readBoolean();
+			frame.restoreTop	= stream.readBoolean();
+			frame.canYield		= stream.readBoolean();
+
+			frame.continuation		= (Continuation) readValue();
+			frame.continuationBase	= stream.readInt();
+
+			frame.pending		= stream.readInt();
+			frame.pendingArg	= stream.readInt();
+			frame.pendingNot	= stream.readBoolean();
+		}
+
+		protected byte[] readBytes() throws IOException{
+			byte[] bytes = new byte[ stream.readInt() ];
+
+			stream.readFully(bytes);
+			return bytes;
+		}
+	}
+
+}
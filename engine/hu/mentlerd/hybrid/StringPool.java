@@ -0,0 +1,94 @@
+package hu.mentlerd.hybrid;
+
+/**
+ * A bounded, lossy string intern pool. Equal strings passed through the same pool
+ * are usually the same instance, which lets table lookups succeed on an identity
+ * check, and saves the memory of the duplicates.
+ *
+ * Every string hashes into a single slot, and a newer string simply replaces the
+ * older one on collision, so the pool never grows, and needs no locking: Strings are
+ * immutable, the worst a race can do is to lose an entry.
+ */
+public class StringPool {
+
+	public static final int DEFAULT_SIZE		= 4096;
+	public static final int DEFAULT_MAX_LENGTH	= 32;
+
+	protected final String[] entries;
+	protected final int mask;
+
+	protected final int maxLength;
+
+	public StringPool(){
+		this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param size The count of slots, rounded up to a power of two
+	 * @param maxLength Strings longer than this are not pooled
+	 */
+	public StringPool( int size, int maxLength ){
+		int capacity = 1;
+		while ( capacity < size )
+			capacity <<= 1;
+
+		this.entries	= new String[capacity];
+		this.mask		= capacity -1;
+
+		this.maxLength	= maxLength;
+	}
+
+	protected int slotOf( int hash ){
+		return ( hash ^ (hash >>> 16) ) & mask;
+	}
+
+	public String intern( String string ){
+		if ( string == null || string.length() > maxLength )
+			return string;
+
+		int slot = slotOf( string.hashCode() );
+
+		String entry = entries[slot];
+		if ( entry != null && ( entry == string || entry.equals(string) ) )
+			return entry;
+
+		entries[slot] = string;
+		return string;
+	}
+
+	/**
+	 * Interns a range of characters, only creating a String if it is not pooled yet.
+	 */
+	public String intern( char[] chars, int offset, int len ){
+		if ( len > maxLength )
+			return new String(chars, offset, len);
+
+		int hash = 0;
+		for ( int index = 0; index < len; index++ )
+			hash = 31 * hash + chars[offset + index];
+
+		int slot = slotOf(hash);
+
+		String entry = entries[slot];
+		if ( entry != null && matches(entry, chars, offset, len) )
+			return entry;
+
+		entry = new String(chars, offset, len);
+
+		entries[slot] = entry;
+		return entry;
+	}
+
+	protected static boolean matches( String entry, char[] chars, int offset, int len ){
+		if ( entry.length() != len )
+			return false;
+
+		for ( int index = 0; index < len; index++ ){
+			if ( entry.charAt(index) != chars[offset + index] )
+				return false;
+		}
+
+		return true;
+	}
+
+}
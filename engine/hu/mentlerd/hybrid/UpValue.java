@@ -6,11 +6,21 @@ public class UpValue {
 	
 	private Object value;
 	
+	//Next open upvalue of the coroutine, with a lower index
+	protected UpValue next;
+	
 	public UpValue( Coroutine coroutine, int index ){
 		this.coroutine	= coroutine;
 		this.index		= index;
 	}
 	
+	/**
+	 * @return The coroutine the value is stored on, or null once closed
+	 */
+	public Coroutine getCoroutine(){
+		return coroutine;
+	}
+	
 	public int getIndex(){
 		return index;
 	}
@@ -0,0 +1,141 @@
+package hu.mentlerd.hybrid.compiler;
+
+import hu.mentlerd.hybrid.LuaTable;
+import hu.mentlerd.hybrid.LuaUtil;
+import hu.mentlerd.hybrid.StringPool;
+
+import java.io.Reader;
+
+/**
+ * Loads data chunks: a single table constructor, optionally prefixed by 'return',
+ * containing only constant values. The tables are filled while the source is being
+ * read, and no code is generated, so memory use depends only on the resulting table.
+ * There are no limits on the count of the constants or the items either.
+ */
+public class DataParser {
+
+	public static LuaTable parse(int firstByte, Reader z, String source, StringPool pool) {
+		LexState ls = new LexState(z, firstByte, source);
+		ls.pool = pool;
+
+		DataParser parser = new DataParser(ls);
+
+		return parser.chunk();
+	}
+
+	private final LexState ls;
+
+	private DataParser( LexState ls ){
+		this.ls = ls;
+	}
+
+	private LuaTable chunk() {
+		ls.next(); /* read first token */
+		ls.testnext(LexState.TK_RETURN);
+
+		ls.check('{');
+		LuaTable table = constructor();
+
+		ls.testnext(';');
+		ls.check(LexState.TK_EOS);
+		return table;
+	}
+
+	private LuaTable constructor() {
+		/* constructor -> '{' [ field { fieldsep field } [ fieldsep ] ] '}' */
+		int line = ls.linenumber;
+		int index = 1;
+
+		LuaTable table = new LuaTable();
+
+		ls.enterlevel();
+		ls.checknext('{');
+
+		while ( ls.t.token != '}' ){
+			switch ( ls.t.token ) {
+			case LexState.TK_NAME: { /* may be listfields or recfields */
+				ls.lookahead();
+
+				if ( ls.lookahead.token != '=' ) /* expression? */
+					ls.lexerror("constant expected near " + LexState.LUA_QS(ls.t.ts), 0);
+
+				String key = ls.str_checkname();
+				ls.checknext('=');
+
+				table.rawset(key, value());
+				break;
+			}
+			case '[': { /* constructor_item -> recfield */
+				ls.next();
+				Object key = value();
+
+				if ( key == null )
+					ls.syntaxerror("table index is nil");
+
+				if ( key instanceof Double && ((Double) key).isNaN() )
+					ls.syntaxerror("table index is NaN");
+
+				ls.checknext(']');
+				ls.checknext('=');
+
+				table.rawset(key, value());
+				break;
+			}
+			default: { /* constructor_part -> listfield */
+				Object value = value();
+
+				if ( value != null )
+					table.rawset(index, value);
+
+				index++;
+				break;
+			}
+			}
+
+			if ( !ls.testnext(',') && !ls.testnext(';') )
+				break;
+		}
+
+		ls.check_match('}', '{', line);
+		ls.leavelevel();
+		return table;
+	}
+
+	private Object value() {
+		/* value -> NUMBER | STRING | NIL | true | false | '-' NUMBER | constructor */
+		Object value;
+
+		switch ( ls.t.token ) {
+		case LexState.TK_NUMBER:
+			value = LuaUtil.box(ls.t.r);
+			break;
+		case LexState.TK_STRING:
+			value = ls.t.ts;
+			break;
+		case LexState.TK_NIL:
+			value = null;
+			break;
+		case LexState.TK_TRUE:
+			value = Boolean.TRUE;
+			break;
+		case LexState.TK_FALSE:
+			value = Boolean.FALSE;
+			break;
+		case '-':
+			ls.next();
+			ls.check(LexState.TK_NUMBER);
+
+			value = LuaUtil.box(-ls.t.r);
+			break;
+		case '{':
+			return constructor();
+		default:
+			ls.syntaxerror("constant expected");
+			return null;
+		}
+
+		ls.next();
+		return value;
+	}
+
+}
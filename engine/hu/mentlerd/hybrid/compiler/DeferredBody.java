@@ -0,0 +1,106 @@
+package hu.mentlerd.hybrid.compiler;
+
+import hu.mentlerd.hybrid.Prototype;
+import hu.mentlerd.hybrid.StringPool;
+
+/**
+ * The source range of a function body skipped by {@link LexState#deferbody}, compiled
+ * on the first call of the function.
+ * 
+ * @exclude
+ */
+class DeferredBody implements Prototype.Body {
+	
+	/*
+	 * Stands in for the enclosing functions, which are long gone by the time the
+	 * body gets compiled. Every name captured while skimming resolves to the upvalue
+	 * of the same index, everything else is a global, just as it was back then.
+	 */
+	static class Scope extends FuncState {
+		final String[] names;
+		
+		Scope(LexState ls, String[] names) {
+			super(ls);
+			this.names = names;
+			this.f.source = ls.source;
+		}
+		
+		int find(String n) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(n))
+					return i;
+			}
+			return -1;
+		}
+		
+		boolean isvisible(String n) {
+			return find(n) >= 0;
+		}
+		
+		int singlevaraux(String n, ExpDesc var, int base) {
+			int index = find(n);
+			if (index < 0) {
+				var.init(LexState.VGLOBAL, NO_REG);
+				return LexState.VGLOBAL;
+			}
+			var.init(LexState.VUPVAL, index);
+			return LexState.VUPVAL;
+		}
+	}
+	
+	final char[] text;
+	final int offset;
+	final int line;
+	
+	final String source;
+	final int linedefined;
+	
+	final boolean needself;
+	final String[] upvalues;
+	
+	final StringPool pool;
+	
+	DeferredBody(char[] text, int offset, int line, String source, int linedefined, boolean needself, String[] upvalues, StringPool pool) {
+		this.text = text;
+		this.offset = offset;
+		this.line = line;
+		this.source = source;
+		this.linedefined = linedefined;
+		this.needself = needself;
+		this.upvalues = upvalues;
+		this.pool = pool;
+	}
+	
+	public void compile(Prototype into) {
+		LexState ls = new LexState(text, offset, line, source);
+		ls.pool = pool;
+		new Scope(ls, upvalues);
+		
+		FuncState fs = new FuncState(ls);
+		fs.linedefined = linedefined;
+		
+		/* the captured upvalues come first, in the order the closure was built with */
+		Prototype f = fs.f;
+		f.upvalues = upvalues.clone();
+		f.numUpvalues = upvalues.length;
+		for (int i = 0; i < upvalues.length; i++) {
+			fs.upvalues_k[i] = LexState.VUPVAL;
+			fs.upvalues_info[i] = i;
+		}
+		
+		ls.next(); /* read the first token after `(' */
+		ls.funcbody(fs, needself, linedefined);
+		FuncState._assert(f.numUpvalues == into.numUpvalues);
+		
+		into.code = f.code;
+		into.constants = f.constants;
+		into.prototypes = f.prototypes;
+		into.numParams = f.numParams;
+		into.isVararg = f.isVararg;
+		into.maxStacksize = f.maxStacksize;
+		into.verified = f.verified;
+		into.lines = f.lines;
+		into.locals = f.locals;
+		into.upvalues = f.upvalues;
+	}
+}
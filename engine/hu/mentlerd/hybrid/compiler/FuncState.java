@@ -22,10 +22,11 @@
 package hu.mentlerd.hybrid.compiler;
 
 import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaUtil;
 import hu.mentlerd.hybrid.Prototype;
 import hu.mentlerd.hybrid.Prototype.LocalVar;
 
-import java.util.Hashtable;
+import java.util.HashMap;
 
 
 /**
@@ -44,7 +45,7 @@ public class FuncState {
 	
 	Prototype f;  /* current function header */
 //	LTable h;  /* table to find (and reuse) elements in `k' */
-	Hashtable<Object, Integer> htable;  /* table to find (and reuse) elements in `k' */
+	HashMap<Object, Integer> htable;  /* table to find (and reuse) elements in `k' */
 	FuncState prev;  /* enclosing function */
 	LexState ls;  /* lexical state */
 	BlockCnt bl;  /* chain of current blocks */
@@ -84,7 +85,7 @@ public class FuncState {
         this.bl = null;
         f.maxStacksize = 2;  /* registers 0/1 are always valid */
         //fs.h = new LTable();
-        this.htable = new Hashtable<Object, Integer>();
+        this.htable = new HashMap<Object, Integer>();
 
 	}
 	
@@ -162,6 +163,11 @@ public class FuncState {
 		return -1; /* not found */
 	}
 		
+	boolean isvisible(String n) {
+		/* true if `n' resolves to a local of this or an enclosing function */
+		return searchvar(n) >= 0 || (prev != null && prev.isvisible(n));
+	}
+		
 	void markupval(int level) {
 		BlockCnt bl = this.bl;
 		while (bl != null && bl.nactvar > level)
@@ -453,11 +459,12 @@ public class FuncState {
 
 	int addk(Object v) {
 		int idx;
-		if (this.htable.containsKey(v)) {
-			idx = ((Integer) htable.get(v)).intValue();
+		Integer known = this.htable.get(v);
+		if (known != null) {
+			idx = known.intValue();
 		} else {
 			idx = this.nk;
-			this.htable.put(v, new Integer(idx));
+			this.htable.put(v, Integer.valueOf(idx));
 			final Prototype f = this.f;
 			if (f.constants == null || nk + 1 >= f.constants.length)
 				f.constants = realloc( f.constants, nk*2 + 1 );
@@ -474,7 +481,7 @@ public class FuncState {
 	}
 
 	int numberK(double r) {
-		return this.addk(new Double(r));
+		return this.addk(LuaUtil.box(r));
 	}
 
 	int boolK(boolean b) {
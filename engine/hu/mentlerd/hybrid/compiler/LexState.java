@@ -22,14 +22,21 @@
 package hu.mentlerd.hybrid.compiler;
 
 
+import hu.mentlerd.hybrid.BytecodeVerifier;
 import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaUtil;
 import hu.mentlerd.hybrid.Prototype;
 import hu.mentlerd.hybrid.Prototype.LocalVar;
+import hu.mentlerd.hybrid.StringPool;
 import hu.mentlerd.hybrid.compiler.BlockCnt;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 
 
@@ -56,10 +63,20 @@ public class LexState {
         RESERVED_LOCAL_VAR_FOR_STATE,
         RESERVED_LOCAL_VAR_FOR_STEP
     };
-    private static final Hashtable<String, Boolean> RESERVED_LOCAL_VAR_KEYWORDS_TABLE = new Hashtable<String, Boolean>();
+    
+    /*
+     * The lookup tables below are filled once during class initialization, and
+     * only read afterwards. They are shared between every LexState, so they must
+     * never be modified, otherwise parallel compilation would break.
+     */
+    private static final Map<String, Boolean> RESERVED_LOCAL_VAR_KEYWORDS_TABLE;
     static {
+    	Map<String, Boolean> table = new HashMap<String, Boolean>();
+    	
     	for ( int i=0; i<RESERVED_LOCAL_VAR_KEYWORDS.length; i++ )
-        	RESERVED_LOCAL_VAR_KEYWORDS_TABLE.put( RESERVED_LOCAL_VAR_KEYWORDS[i], Boolean.TRUE );
+        	table.put( RESERVED_LOCAL_VAR_KEYWORDS[i], Boolean.TRUE );
+    	
+    	RESERVED_LOCAL_VAR_KEYWORDS_TABLE = Collections.unmodifiableMap(table);
     }
                                
     private static final int EOZ    = (-1);
@@ -67,7 +84,7 @@ public class LexState {
 	private static final int UCHAR_MAX = 255; // TODO, convert to unicode CHAR_MAX? 
 	private static final int LUAI_MAXCCALLS = 200;
 	
-	private static final String LUA_QS(String s) { return "'"+s+"'"; }
+	static final String LUA_QS(String s) { return "'"+s+"'"; }
 	private static final String LUA_QL(Object o) { return LUA_QS(String.valueOf(o)); }
 	
     public static boolean isReservedKeyword(String varName) {
@@ -124,6 +141,11 @@ public class LexState {
 	char[] buff;  /* buffer for tokens */
 	int nbuff; /* length of buffer */
 	String source;  /* current source name */
+	
+	char[] text;  /* whole source when compiling lazily, null otherwise */
+	int offset;  /* position of the next character in `text' */
+	
+	StringPool pool;  /* shares the names and strings with the runtime, may be null */
 
 	/* ORDER RESERVED */
 	final static String luaX_tokens [] = {
@@ -148,12 +170,16 @@ public class LexState {
 	final static int FIRST_RESERVED = TK_AND;
 	final static int NUM_RESERVED = TK_WHILE+1-FIRST_RESERVED;
 	
-	final static Hashtable<String, Integer> RESERVED = new Hashtable<String, Integer>();
+	final static Map<String, Integer> RESERVED;
 	static {
+		Map<String, Integer> table = new HashMap<String, Integer>();
+		
 		for ( int i=0; i<NUM_RESERVED; i++ ) {
 			String ts = luaX_tokens[i];
-			RESERVED.put(ts, new Integer(FIRST_RESERVED+i));
+			table.put(ts, Integer.valueOf(FIRST_RESERVED+i));
 		}
+		
+		RESERVED = Collections.unmodifiableMap(table);
 	}
 
 	private boolean isalnum(int c) {
@@ -178,7 +204,12 @@ public class LexState {
 	}
 	
 	public static Prototype compile(int firstByte, Reader z, String source) {
+		return compile(firstByte, z, source, null);
+	}
+	
+	public static Prototype compile(int firstByte, Reader z, String source, StringPool pool) {
         LexState lexstate = new LexState(z, firstByte, source);
+        lexstate.pool = pool;
         FuncState funcstate = new FuncState(lexstate);
         // lexstate.buff = buff;
 
@@ -195,6 +226,41 @@ public class LexState {
         return funcstate.f;
     }
 	
+	/**
+	 * Compiles the main function of a chunk, deferring the bodies of the nested
+	 * functions until their first call. (See {@link DeferredBody})
+	 */
+	public static Prototype compileLazy(char[] text, String source, StringPool pool) {
+		LexState lexstate = new LexState(text, 0, 1, source);
+		lexstate.pool = pool;
+		FuncState funcstate = new FuncState(lexstate);
+		
+		lexstate.skipShebang();
+		
+		funcstate.isVararg = FuncState.VARARG_ISVARARG;
+		funcstate.f.source = source;
+		lexstate.next(); /* read first token */
+		lexstate.chunk();
+		lexstate.check(LexState.TK_EOS);
+		lexstate.close_func();
+		FuncState._assert(lexstate.fs == null);
+		return funcstate.f;
+	}
+	
+	LexState(char[] text, int offset, int line, String source) {
+		this.z = null;
+		this.text = text;
+		this.offset = offset;
+		this.buff = new char[32];
+		this.lookahead.token = TK_EOS; /* no look-ahead token */
+		this.fs = null;
+		this.linenumber = line;
+		this.lastline = line;
+		this.source = source;
+		this.nbuff = 0;
+		this.nextChar(); /* read first char */
+	}
+	
 	public LexState(Reader stream, int firstByte, String source) {
 		this.z = stream;
 		this.buff = new char[32];
@@ -209,6 +275,10 @@ public class LexState {
 	}
 
 	void nextChar() {
+		if ( text != null ) {
+			current = ( offset < text.length ) ? text[offset++] : EOZ;
+			return;
+		}
 		try {
  			current = z.read();
 		} catch ( IOException e ) {
@@ -279,6 +349,9 @@ public class LexState {
 	}
 
 	String newstring( char[] chars, int offset, int len ) {
+		if ( pool != null )
+			return pool.intern(chars, offset, len);
+		
 		StringBuilder builder = new StringBuilder();
 			builder.append(chars, offset, len);
 				
@@ -318,18 +391,13 @@ public class LexState {
 	}
 
 	void str2d(String str, Token token) {
-        try {
-            double d;
-            if (str.startsWith("0x")) {
-                d = Long.parseLong(str.substring(2), 16);
-            } else {
-                d = Double.parseDouble(str);
-            }
-            token.r = d;
-        } catch (NumberFormatException e) {
+		Double d = LuaUtil.parseNumber(str);
+		
+		if (d == null)
 			lexerror("malformed number", TK_NUMBER);
-        }
-    }
+		
+		token.r = d;
+	}
 
 	//
 	// TODO: reexamine this source and see if it should be ported differently
@@ -642,8 +710,9 @@ public class LexState {
 						save_and_next();
 					} while (isalnum(current) || current == '_');
 					ts = newstring(buff, 0, nbuff);
-					if ( RESERVED.containsKey(ts) )
-						return ((Integer)RESERVED.get(ts)).intValue();
+					Integer reserved = RESERVED.get(ts);
+					if ( reserved != null )
+						return reserved.intValue();
 					else {
 						token.ts = ts;
 						return TK_NAME;
@@ -830,16 +899,20 @@ public class LexState {
 	}
 	
 	void pushclosure(FuncState func, ExpDesc v) {
+		pushclosure(func.f, func.upvalues_k, func.upvalues_info, v);
+	}
+	
+	void pushclosure(Prototype p, int[] upvalues_k, int[] upvalues_info, ExpDesc v) {
 		FuncState fs = this.fs;
 		Prototype f = fs.f;
 		if (f.prototypes == null || fs.np + 1 > f.prototypes.length)
 			f.prototypes = FuncState.realloc( f.prototypes, fs.np*2 + 1 );
-		f.prototypes[fs.np++] = func.f;
+		f.prototypes[fs.np++] = p;
 		v.init(VRELOCABLE, fs.codeABx(FuncState.OP_CLOSURE, 0, fs.np - 1));
-		for (int i = 0; i < func.f.numUpvalues; i++) {
-			int o = (func.upvalues_k[i] == VLOCAL) ? FuncState.OP_MOVE
+		for (int i = 0; i < p.numUpvalues; i++) {
+			int o = (upvalues_k[i] == VLOCAL) ? FuncState.OP_MOVE
 					: FuncState.OP_GETUPVAL;
-			fs.codeABC(o, 0, func.upvalues_info[i], 0);
+			fs.codeABC(o, 0, upvalues_info[i], 0);
 		}
 	}
 	
@@ -858,7 +931,7 @@ public class LexState {
 		f.locals = FuncState.realloc(f.locals, fs.nlocvars);
 		// f.sizelocvars = fs.nlocvars;
 		f.upvalues = FuncState.realloc(f.upvalues, f.numUpvalues);
-		// FuncState._assert (CheckCode.checkcode(f));
+		BytecodeVerifier.verify(f);
 		FuncState._assert (fs.bl == null);
 		this.fs = fs.prev;
 //		L.top -= 2; /* remove table and prototype from the stack */
@@ -1018,9 +1091,17 @@ public class LexState {
 
 	void body(ExpDesc e, boolean needself, int line) {
 		/* body -> `(' parlist `)' chunk END */
+		if (this.text != null && this.deferbody(e, needself, line))
+			return;
 		FuncState new_fs = new FuncState(this);
 		new_fs.linedefined = line;
 		this.checknext('(');
+		this.funcbody(new_fs, needself, line);
+		this.pushclosure(new_fs, e);
+	}
+	
+	void funcbody(FuncState new_fs, boolean needself, int line) {
+		/* funcbody -> parlist `)' chunk END, the `(' is already consumed */
 		if (needself) {
 			new_localvarliteral("self", 0);
 			adjustlocalvars(1);
@@ -1031,7 +1112,72 @@ public class LexState {
 		new_fs.lastlinedefined = this.linenumber;
 		this.check_match(TK_END, TK_FUNCTION, line);
 		this.close_func();
-		this.pushclosure(new_fs, e);
+	}
+	
+	/*
+	** Skims a function body up to its matching `end' without generating code.
+	** Every name used in the body that is visible here becomes an upvalue of the
+	** deferred prototype, as the real scoping is only known after parsing. Capturing
+	** too much is harmless, it only keeps some locals alive as upvalues.
+	*/
+	boolean deferbody(ExpDesc e, boolean needself, int line) {
+		FuncState fs = this.fs;
+		if (this.t.token != '(' || this.lookahead.token != TK_EOS || this.current == EOZ)
+			return false;
+		int start = this.offset - 1; /* position of `current', right after the `(' */
+		int startline = this.linenumber;
+		Set<String> names = new LinkedHashSet<String>();
+		int depth = 1;
+		int prev = 0;
+		this.next(); /* skip `(' */
+		while (true) {
+			switch (this.t.token) {
+			case TK_FUNCTION: case TK_IF: case TK_DO: case TK_REPEAT:
+				depth++;
+				break;
+			case TK_END: case TK_UNTIL:
+				depth--;
+				break;
+			case TK_NAME:
+				if (prev != '.' && prev != ':' && fs.isvisible(this.t.ts))
+					names.add(this.t.ts);
+				break;
+			case TK_EOS:
+				depth = 0;
+				break;
+			}
+			if (depth == 0)
+				break;
+			prev = this.t.token;
+			this.next();
+		}
+		int nups = names.size();
+		if (this.t.token != TK_END || nups > FuncState.LUAI_MAXUPVALUES
+				|| fs.f.numUpvalues + nups > FuncState.LUAI_MAXUPVALUES) {
+			/* too many captures (or broken code), rewind and compile it now */
+			this.offset = start;
+			this.linenumber = startline;
+			this.nextChar();
+			this.t.token = '(';
+			return false;
+		}
+		String[] upvalues = names.toArray(new String[nups]);
+		int[] upvalues_k = new int[nups];
+		int[] upvalues_info = new int[nups];
+		for (int i = 0; i < nups; i++) {
+			ExpDesc v = new ExpDesc();
+			fs.singlevaraux(upvalues[i], v, 0); /* same lookup the body would do */
+			upvalues_k[i] = v.k;
+			upvalues_info[i] = v.info;
+		}
+		Prototype f = new Prototype();
+		f.source = fs.f.source;
+		f.numUpvalues = nups;
+		f.upvalues = upvalues;
+		f.defer(new DeferredBody(this.text, start, startline, this.source, line, needself, upvalues, this.pool));
+		this.check_match(TK_END, TK_FUNCTION, line);
+		this.pushclosure(f, upvalues_k, upvalues_info, e);
+		return true;
 	}
 	
 	int explist1(ExpDesc v) {
@@ -2,6 +2,7 @@ package hu.mentlerd.hybrid.lib;
 
 import hu.mentlerd.hybrid.CallFrame;
 import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.Continuation;
 import hu.mentlerd.hybrid.Indexable;
 import hu.mentlerd.hybrid.LuaClosure;
 import hu.mentlerd.hybrid.LuaException;
@@ -14,7 +15,10 @@ public enum BaseLib implements Callable{
 
 	PCALL {
 		public int call(CallFrame frame, int argCount) {
-			return frame.getThread().pcall( argCount -1 );
+			frame.getArg(0);
+			
+			//Not nested, so the function can yield
+			return frame.getThread().callk(frame, 0, argCount -1, PROTECTED);
 		}
 	},
 	
@@ -44,8 +48,8 @@ public enum BaseLib implements Callable{
 		public int call(CallFrame frame, int argCount) {
 			Object index = frame.getArg(0);
 			
-			if ( index instanceof String ){
-				String string = (String) index;
+			if ( LuaUtil.isString(index) ){
+				String string = index.toString();
 				
 				if ( string.startsWith("#") ){
 					frame.push( argCount -1 );
@@ -99,13 +103,14 @@ public enum BaseLib implements Callable{
 			if ( index != index.intValue() )
 				throw new LuaException("Bad argument to inext! Expected whole number as index");
 			
-			Object value = table.rawget(++index);
+			int next		= index.intValue() +1;
+			Object value	= table.rawget(next);
 			
 			if ( value == null ){
 				frame.push(null);
 				return 1;
 			} else {
-				frame.push(index);
+				frame.push(next);
 				frame.push(value);
 				return 2;
 			}
@@ -164,15 +169,21 @@ public enum BaseLib implements Callable{
 	},
 	TONUMBER {
 		public int call(CallFrame frame, int argCount) {
-			String number	= frame.getArg(0, String.class);
+			Object value	= frame.getArg(0);
 			int radix		= frame.getIntArg(1, 10);
 			
+			if ( radix == 10 ){
+				frame.push( LuaUtil.rawToNumber(value) );
+				return 1;
+			}
+			
+			if ( radix < 2 || radix > 36 )
+				throw LuaUtil.argError(1, "base out of range");
+			
 			try{
-				if ( radix == 10 ) {
-					frame.push( Double.parseDouble(number) );
-				} else {
-					frame.push( Double.valueOf( Integer.parseInt(number, radix) ) );
-				}
+				String number = LuaUtil.rawToString(value).trim();
+				
+				frame.push( (double) Long.parseLong(number, radix) );
 			} catch ( Exception e ){
 				frame.push( null );
 			}
@@ -291,6 +302,8 @@ public enum BaseLib implements Callable{
 			
 			if ( a == null || b == null ){
 				frame.push( a == b );
+			} else if ( LuaUtil.isString(a) && LuaUtil.isString(b) ){
+				frame.push( LuaUtil.rawToString(a).equals( LuaUtil.rawToString(b) ) );
 			} else {
 				frame.push( a.equals(b) );
 			}
@@ -318,6 +331,32 @@ public enum BaseLib implements Callable{
 		}
 	};
 	
+	/**
+	 * Returns true, and the results of the protected function, or false, the error,
+	 * the stack trace, and the exception
+	 */
+	public static final Continuation PROTECTED = new Continuation(){
+		public int resume( CallFrame frame, int retCount ){
+			int base = frame.getTop() - retCount;
+			
+			frame.push(null);
+			
+			for ( int index = base + retCount; index > base; index-- )
+				frame.set(index, frame.get(index -1));
+			
+			frame.set(base, Boolean.TRUE);
+			return retCount +1;
+		}
+		
+		public int fail( CallFrame frame, RuntimeException err ){
+			frame.push( Boolean.FALSE );
+			frame.push( LuaUtil.getExceptionCause(err) );
+			frame.push( frame.coroutine.getStackTrace() );
+			frame.push( err );
+			return 4;
+		}
+	};
+	
 	public static LuaTable bind( LuaTable into ){
 		for ( BaseLib entry : values() )
 			into.rawset(entry.name().toLowerCase(), entry);
@@ -0,0 +1,94 @@
+package hu.mentlerd.hybrid.lib;
+
+import hu.mentlerd.hybrid.CallFrame;
+import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.LuaBuffer;
+import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaTable;
+
+public enum BufferLib implements Callable{
+
+	NEW {
+		public int call(CallFrame frame, int argCount) {
+			int capacity = frame.getIntArg(0, LuaBuffer.DEFAULT_CAPACITY);
+
+			if ( capacity < 0 )
+				capacity = 0;
+
+			LuaBuffer buffer = new LuaBuffer(capacity);
+
+			for ( int index = 1; index < argCount; index++ )
+				put(frame, buffer, index);
+
+			frame.push(buffer);
+			return 1;
+		}
+	},
+
+	PUT {
+		public int call(CallFrame frame, int argCount) {
+			LuaBuffer buffer = frame.getArg(0, LuaBuffer.class);
+
+			for ( int index = 1; index < argCount; index++ )
+				put(frame, buffer, index);
+
+			frame.push(buffer); //Allow chaining
+			return 1;
+		}
+	},
+	PUTF {
+		public int call(CallFrame frame, int argCount) {
+			LuaBuffer buffer	= frame.getArg(0, LuaBuffer.class);
+			String format		= frame.getArg(1, String.class);
+
+			StringLib.format(frame, buffer.getBuilder(), format, 2);
+
+			frame.push(buffer);
+			return 1;
+		}
+	},
+
+	RESET {
+		public int call(CallFrame frame, int argCount) {
+			LuaBuffer buffer = frame.getArg(0, LuaBuffer.class);
+			buffer.reset();
+
+			frame.push(buffer);
+			return 1;
+		}
+	},
+
+	TOSTRING {
+		public int call(CallFrame frame, int argCount) {
+			LuaBuffer buffer = frame.getArg(0, LuaBuffer.class);
+
+			frame.push( buffer.toString() );
+			return 1;
+		}
+	},
+	LEN {
+		public int call(CallFrame frame, int argCount) {
+			LuaBuffer buffer = frame.getArg(0, LuaBuffer.class);
+
+			frame.push( buffer.length() );
+			return 1;
+		}
+	};
+
+	protected static void put( CallFrame frame, LuaBuffer buffer, int index ){
+		Object value = frame.get(index);
+
+		if ( !buffer.append(value) )
+			throw new LuaException("bad argument to #" + index + " (string expected, got " + frame.getPlatform().getTypename(value) + ")");
+	}
+
+	public static LuaTable bind(){
+		return bind( new LuaTable() );
+	}
+	public static LuaTable bind( LuaTable into ){
+		for ( BufferLib entry : values() )
+			into.rawset(entry.name().toLowerCase(), entry);
+
+		return into;
+	}
+}
@@ -0,0 +1,106 @@
+package hu.mentlerd.hybrid.lib;
+
+import hu.mentlerd.hybrid.CallFrame;
+import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.Channel;
+import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaTable;
+import hu.mentlerd.hybrid.LuaUtil;
+import hu.mentlerd.hybrid.Scheduler;
+
+public enum ChannelLib implements Callable{
+
+	NEW {
+		public int call(CallFrame frame, int argCount) {
+			int capacity = frame.getIntArg(0, Channel.DEFAULT_CAPACITY);
+
+			if ( capacity < 1 )
+				throw LuaUtil.argError(0, "capacity must be positive");
+
+			frame.push( new Channel(capacity) );
+			return 1;
+		}
+	},
+	SEND {
+		public int call(CallFrame frame, int argCount) {
+			Channel channel	= frame.getArg(0, Channel.class);
+			Object value	= frame.getArgNull(1);
+
+			Scheduler scheduler = getScheduler(frame);
+
+			if ( scheduler != null )
+				return channel.send(frame, scheduler, value);
+
+			try {
+				frame.push( channel.put(value) );
+			} catch ( InterruptedException err ){
+				throw interrupted();
+			}
+
+			return 1;
+		}
+	},
+	RECEIVE {
+		public int call(CallFrame frame, int argCount) {
+			Channel channel = frame.getArg(0, Channel.class);
+
+			Scheduler scheduler = getScheduler(frame);
+
+			if ( scheduler != null )
+				return channel.receive(frame, scheduler);
+
+			try {
+				frame.push( channel.take() );
+			} catch ( InterruptedException err ){
+				throw interrupted();
+			}
+
+			return 1;
+		}
+	},
+	TRY_RECEIVE {
+		public int call(CallFrame frame, int argCount) {
+			Channel channel = frame.getArg(0, Channel.class);
+
+			frame.push( channel.poll() );
+			return 1;
+		}
+	},
+	CLOSE {
+		public int call(CallFrame frame, int argCount) {
+			Channel channel = frame.getArg(0, Channel.class);
+
+			channel.close();
+			return 0;
+		}
+	};
+
+	/**
+	 * Returns the scheduler of the calling coroutine, if it is scheduled. Scheduled
+	 * coroutines are suspended while waiting, others block the thread.
+	 */
+	protected Scheduler getScheduler( CallFrame frame ){
+		Scheduler scheduler = frame.getThread().getScheduler();
+
+		if ( scheduler != null && scheduler.getCurrent() == frame.coroutine )
+			return scheduler;
+
+		return null;
+	}
+
+	protected LuaException interrupted(){
+		Thread.currentThread().interrupt(); //Keep the flag for the caller
+
+		return new LuaException("interrupted while waiting on a channel");
+	}
+
+	public static LuaTable bind(){
+		return bind( new LuaTable() );
+	}
+	public static LuaTable bind( LuaTable into ){
+		for ( ChannelLib entry : values() )
+			into.rawset(entry.name().toLowerCase(), entry);
+
+		return into;
+	}
+}
@@ -14,7 +14,7 @@ public enum CoroutineLib implements Callable{
 		public int call(CallFrame frame, int argCount) {
 			LuaClosure closure = getFunction(frame);
 			
-			Coroutine coroutine = new Coroutine(frame.getPlatform(), frame.getEnv(), closure);
+			Coroutine coroutine = frame.getThread().newCoroutine(frame.getEnv(), closure);
 			frame.push( coroutine );
 			return 1;
 		}
@@ -23,7 +23,7 @@ public enum CoroutineLib implements Callable{
 		public int call(CallFrame frame, int argCount) {
 			LuaClosure closure = getFunction(frame);
 			
-			Coroutine coroutine = new Coroutine(frame.getPlatform(), frame.getEnv(), closure);
+			Coroutine coroutine = frame.getThread().newCoroutine(frame.getEnv(), closure);
 			frame.push( new WrappedCoroutine(coroutine) );
 			return 1;
 		}
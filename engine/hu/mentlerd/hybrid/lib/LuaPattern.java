@@ -0,0 +1,693 @@
+package hu.mentlerd.hybrid.lib;
+
+import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaString;
+import hu.mentlerd.hybrid.LuaUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled Lua pattern. The pattern is parsed once into a list of items, (Single
+ * character classes with their repetition, captures, %b, %f and back references) and
+ * matched with the same backtracking rules as lstrlib.c, without re-parsing the
+ * pattern text on every step.
+ *
+ * Character classes follow the C locale: only ASCII characters are letters, digits,
+ * and so on.
+ */
+public final class LuaPattern {
+
+	public static final int MAX_CAPTURES	= 32;
+
+	protected static final int CAP_UNFINISHED	= -1;
+	protected static final int CAP_POSITION		= -2;
+
+	//Item types
+	protected static final int SINGLE		= 0;
+	protected static final int OPEN			= 1;
+	protected static final int POSITION		= 2;
+	protected static final int CLOSE		= 3;
+	protected static final int BALANCE		= 4;
+	protected static final int FRONTIER		= 5;
+	protected static final int BACKREF		= 6;
+	protected static final int END			= 7;
+
+	//Repetition of single items
+	protected static final int ONE		= 0;
+	protected static final int OPTIONAL	= 1; // ?
+	protected static final int GREEDY	= 2; // *
+	protected static final int PLUS		= 3; // +
+	protected static final int LAZY		= 4; // -
+
+	protected static final char L_ESC	= '%';
+
+	protected static class Item {
+		protected final int type;
+		protected int repeat = ONE;
+
+		//Single character, or the delimiters of %b
+		protected char c1, c2;
+
+		//Character classes and sets, c < 256 are looked up, the rest is matched by the pattern text
+		protected boolean[] lookup;
+		protected int start, end;
+
+		protected int capture;
+
+		protected Item( int type ){
+			this.type = type;
+		}
+	}
+
+	public static LuaPattern compile( String pattern ){
+		return new LuaPattern(pattern);
+	}
+
+	protected final String pattern;
+	protected final Item[] items;
+
+	protected final boolean anchored;
+	protected int captures;
+
+	protected LuaPattern( String pattern ){
+		this.pattern	= pattern;
+		this.anchored	= pattern.length() > 0 && pattern.charAt(0) == '^';
+
+		this.items		= parse( anchored ? 1 : 0 );
+	}
+
+	public String getPattern(){
+		return pattern;
+	}
+	public boolean isAnchored(){
+		return anchored;
+	}
+
+	public Matcher matcher( CharSequence text ){
+		return new Matcher(this, text);
+	}
+
+	/*
+	 * Parsing
+	 */
+	protected LuaException error( String message ){
+		return new LuaException("malformed pattern (" + message + ")");
+	}
+
+	protected int classEnd( int p ){
+		int len = pattern.length();
+		char c	= pattern.charAt(p++);
+
+		if ( c == L_ESC ){
+			if ( p >= len )
+				throw error("ends with '%'");
+
+			return p +1;
+		}
+
+		if ( c == '[' ){
+			if ( p < len && pattern.charAt(p) == '^' )
+				p++;
+
+			do { //Look for the closing ']'
+				if ( p >= len )
+					throw error("missing ']'");
+
+				if ( pattern.charAt(p++) == L_ESC && p < len )
+					p++;
+			} while ( p >= len || pattern.charAt(p) != ']' );
+
+			return p +1;
+		}
+
+		return p;
+	}
+
+	protected Item single( int p, int ep ){
+		Item item = new Item(SINGLE);
+			item.start	= p;
+			item.end	= ep;
+
+		char c = pattern.charAt(p);
+
+		if ( ep - p == 1 && c != '.' ){ //Plain character, no lookup needed
+			item.c1 = c;
+		} else {
+			item.lookup = new boolean[256];
+
+			for ( char index = 0; index < 256; index++ )
+				item.lookup[index] = singleMatch(index, p, ep);
+		}
+
+		return item;
+	}
+
+	protected Item[] parse( int p ){
+		List<Item> list = new ArrayList<Item>();
+		int len = pattern.length();
+
+		while ( p < len ){
+			char c = pattern.charAt(p);
+			Item item;
+
+			switch( c ){
+				case '(':
+					if ( p +1 < len && pattern.charAt(p +1) == ')' ){
+						item = new Item(POSITION);
+						p += 2;
+					} else {
+						item = new Item(OPEN);
+						p += 1;
+					}
+
+					if ( ++captures > MAX_CAPTURES )
+						throw new LuaException("too many captures");
+
+					list.add(item);
+					continue;
+
+				case ')':
+					list.add( new Item(CLOSE) );
+					p += 1;
+					continue;
+
+				case '$':
+					if ( p +1 == len ){ //Only an anchor at the end of the pattern
+						list.add( new Item(END) );
+						p += 1;
+						continue;
+					}
+					break;
+
+				case L_ESC:
+					if ( p +1 >= len )
+						break; //Reported by classEnd
+
+					char next = pattern.charAt(p +1);
+
+					if ( next == 'b' ){
+						if ( p +3 >= len )
+							throw error("missing arguments to '%b'");
+
+						item = new Item(BALANCE);
+							item.c1 = pattern.charAt(p +2);
+							item.c2 = pattern.charAt(p +3);
+
+						list.add(item);
+						p += 4;
+						continue;
+					}
+
+					if ( next == 'f' ){
+						p += 2;
+
+						if ( p >= len || pattern.charAt(p) != '[' )
+							throw new LuaException("missing '[' after '%f' in pattern");
+
+						int ep = classEnd(p);
+
+						item = single(p, ep);
+						list.add( toFrontier(item) );
+						p = ep;
+						continue;
+					}
+
+					if ( next >= '0' && next <= '9' ){
+						item = new Item(BACKREF);
+							item.capture = next - '1';
+
+						list.add(item);
+						p += 2;
+						continue;
+					}
+					break;
+			}
+
+			//Single character class, with an optional repetition
+			int ep = classEnd(p);
+
+			item = single(p, ep);
+
+			if ( ep < len ){
+				switch( pattern.charAt(ep) ){
+					case '?':	item.repeat = OPTIONAL;	ep++;	break;
+					case '*':	item.repeat = GREEDY;	ep++;	break;
+					case '+':	item.repeat = PLUS;		ep++;	break;
+					case '-':	item.repeat = LAZY;		ep++;	break;
+				}
+			}
+
+			list.add(item);
+			p = ep;
+		}
+
+		return list.toArray( new Item[list.size()] );
+	}
+
+	private static Item toFrontier( Item set ){
+		Item item = new Item(FRONTIER);
+			item.lookup = set.lookup;
+			item.start	= set.start;
+			item.end	= set.end;
+
+		return item;
+	}
+
+	/*
+	 * Character classes
+	 */
+	protected static boolean matchClass( int c, char cl ){
+		boolean res;
+
+		switch( Character.toLowerCase(cl) ){
+			case 'a': res = isAlpha(c);				break;
+			case 'c': res = c < 32 || c == 127;		break;
+			case 'd': res = c >= '0' && c <= '9';	break;
+			case 'l': res = c >= 'a' && c <= 'z';	break;
+			case 'p': res = isPunct(c);				break;
+			case 's': res = c == ' ' || (c >= '\t' && c <= '\r');	break;
+			case 'u': res = c >= 'A' && c <= 'Z';	break;
+			case 'w': res = isAlpha(c) || (c >= '0' && c <= '9');	break;
+			case 'x': res = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');	break;
+			case 'z': res = c == 0;					break;
+
+			default:
+				return cl == c;
+		}
+
+		if ( cl >= 'A' && cl <= 'Z' )
+			return !res;
+
+		return res;
+	}
+
+	private static boolean isAlpha( int c ){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+	private static boolean isPunct( int c ){
+		return c > 32 && c < 127 && !isAlpha(c) && !(c >= '0' && c <= '9');
+	}
+
+	protected boolean matchBracketClass( int c, int p, int ec ){
+		boolean sig = true;
+
+		if ( pattern.charAt(p +1) == '^' ){
+			sig = false;
+			p++;
+		}
+
+		while ( ++p < ec ){
+			char pc = pattern.charAt(p);
+
+			if ( pc == L_ESC ){
+				p++;
+
+				if ( matchClass(c, pattern.charAt(p)) )
+					return sig;
+			} else if ( pattern.charAt(p +1) == '-' && p +2 < ec ){
+				p += 2;
+
+				if ( pc <= c && c <= pattern.charAt(p) )
+					return sig;
+			} else if ( pc == c ){
+				return sig;
+			}
+		}
+
+		return !sig;
+	}
+
+	protected boolean singleMatch( int c, int p, int ep ){
+		switch( pattern.charAt(p) ){
+			case '.':	return true;
+			case L_ESC:	return matchClass(c, pattern.charAt(p +1));
+			case '[':	return matchBracketClass(c, p, ep -1);
+
+			default:
+				return pattern.charAt(p) == c;
+		}
+	}
+
+	protected boolean matches( Item item, char c ){
+		if ( item.lookup == null )
+			return item.c1 == c;
+
+		if ( c < 256 )
+			return item.lookup[c];
+
+		return singleMatch(c, item.start, item.end);
+	}
+
+	/**
+	 * Matches a compiled pattern against a string. Positions are 0 based, and the end
+	 * positions are exclusive, like in java.util.regex.
+	 */
+	public static class Matcher {
+		protected final LuaPattern pattern;
+		protected final Item[] items;
+
+		protected final CharSequence text;
+		protected int length;
+
+		//Position of the text in a stream, and the character before it (See StreamBuffer)
+		protected int offset;
+		protected char previous;
+
+		//Whether the last match attempt needed characters beyond the end of the text
+		protected boolean hitEnd;
+
+		protected int level;
+		protected final int[] capStart;
+		protected final int[] capLen;
+
+		protected int start = -1;
+		protected int end	= -1;
+
+		protected int matchdepth;
+
+		protected Matcher( LuaPattern pattern, CharSequence text ){
+			this.pattern	= pattern;
+			this.items		= pattern.items;
+
+			this.text		= text;
+			this.length		= text.length();
+
+			this.capStart	= new int[pattern.captures];
+			this.capLen		= new int[pattern.captures];
+		}
+
+		/**
+		 * Tries to match the pattern at the given position only
+		 */
+		public boolean matchAt( int init ){
+			level	= 0;
+			hitEnd	= false;
+
+			int e = match(init, 0);
+			if ( e == -1 )
+				return false;
+
+			start	= init;
+			end		= e;
+			return true;
+		}
+
+		/**
+		 * Searches for the first match at, or after the given position
+		 */
+		public boolean find( int init ){
+			do {
+				if ( matchAt(init) )
+					return true;
+			} while ( init++ < length && !pattern.anchored );
+
+			return false;
+		}
+
+		/**
+		 * Returns whether the last attempt read the whole text, so it could have turned
+		 * out differently if the text was longer. (Used to match streamed text)
+		 */
+		public boolean hitEnd(){
+			return hitEnd;
+		}
+
+		/**
+		 * Picks up the new length of a text that has grown, or shrunk, and the position
+		 * of a streamed text that had characters discarded
+		 */
+		public void update(){
+			length = text.length();
+
+			if ( text instanceof StreamBuffer ){ //Discarded characters still count
+				StreamBuffer stream = (StreamBuffer) text;
+
+				offset		= stream.getOffset();
+				previous	= stream.getPrevious();
+			}
+		}
+
+		public int start(){
+			return start;
+		}
+		public int end(){
+			return end;
+		}
+
+		public CharSequence getText(){
+			return text;
+		}
+
+		/**
+		 * Returns the count of captures in the pattern
+		 */
+		public int groupCount(){
+			return level;
+		}
+
+		/**
+		 * Returns a capture of the last match, or the whole match when index is 0,
+		 * and the pattern has no captures. Position captures are returned as 1 based
+		 * Double indices.
+		 */
+		public Object group( int index ){
+			if ( index >= level ){
+				if ( index == 0 )
+					return substring(start, end);
+
+				throw new LuaException("invalid capture index");
+			}
+
+			int len = capLen[index];
+
+			if ( len == CAP_UNFINISHED )
+				throw new LuaException("unfinished capture");
+
+			if ( len == CAP_POSITION )
+				return LuaUtil.box( offset + capStart[index] +1 );
+
+			return substring(capStart[index], capStart[index] + len);
+		}
+		
+		protected Object substring( int from, int to ){
+			CharSequence sub = text.subSequence(from, to);
+			
+			if ( sub instanceof LuaString ) //Byte strings stay bytes
+				return sub;
+			
+			return sub.toString();
+		}
+
+		protected boolean inRange( int s ){
+			if ( s < length )
+				return true;
+
+			hitEnd = true;
+			return false;
+		}
+
+		/*
+		 * Backtracking matcher (See do_match in lstrlib.c)
+		 */
+		protected int match( int s, int i ){
+			if ( ++matchdepth > MAX_MATCH_DEPTH )
+				throw new LuaException("pattern too complex");
+
+			try {
+				while ( i < items.length ){
+					Item item = items[i];
+
+					switch( item.type ){
+						case OPEN:
+							return startCapture(s, i +1, CAP_UNFINISHED);
+						case POSITION:
+							return startCapture(s, i +1, CAP_POSITION);
+						case CLOSE:
+							return endCapture(s, i +1);
+
+						case END:
+							return inRange(s) ? -1 : s;
+
+						case BALANCE:
+							s = matchBalance(s, item);
+
+							if ( s == -1 )
+								return -1;
+
+							i++;
+							continue;
+
+						case FRONTIER: {
+							char prev = ( s == 0 ) ? previous : text.charAt(s -1);
+							char curr = inRange(s) ? text.charAt(s) : '\0';
+
+							if ( pattern.matches(item, prev) || !pattern.matches(item, curr) )
+								return -1;
+
+							i++;
+							continue;
+						}
+
+						case BACKREF:
+							s = matchCapture(s, item.capture);
+
+							if ( s == -1 )
+								return -1;
+
+							i++;
+							continue;
+					}
+
+					//Single character items
+					boolean m = inRange(s) && pattern.matches(item, text.charAt(s));
+
+					switch( item.repeat ){
+						case OPTIONAL:
+							if ( m ){
+								int res = match(s +1, i +1);
+
+								if ( res != -1 )
+									return res;
+							}
+
+							i++;
+							continue;
+
+						case GREEDY:
+							return maxExpand(s, item, i);
+						case PLUS:
+							return m ? maxExpand(s +1, item, i) : -1;
+						case LAZY:
+							return minExpand(s, item, i);
+
+						default:
+							if ( !m )
+								return -1;
+
+							s++;
+							i++;
+					}
+				}
+
+				return s;
+			} finally {
+				matchdepth--;
+			}
+		}
+
+		protected int maxExpand( int s, Item item, int i ){
+			int count = 0;
+
+			while ( inRange(s + count) && pattern.matches(item, text.charAt(s + count)) )
+				count++;
+
+			//Try with the maximum repetitions, and back off until the rest matches
+			while ( count >= 0 ){
+				int res = match(s + count, i +1);
+
+				if ( res != -1 )
+					return res;
+
+				count--;
+			}
+
+			return -1;
+		}
+
+		protected int minExpand( int s, Item item, int i ){
+			while ( true ){
+				int res = match(s, i +1);
+
+				if ( res != -1 )
+					return res;
+
+				if ( inRange(s) && pattern.matches(item, text.charAt(s)) )
+					s++;
+				else
+					return -1;
+			}
+		}
+
+		protected int startCapture( int s, int i, int what ){
+			capStart[level]	= s;
+			capLen[level]	= what;
+			level++;
+
+			int res = match(s, i);
+
+			if ( res == -1 )
+				level--;
+
+			return res;
+		}
+
+		protected int endCapture( int s, int i ){
+			int l = captureToClose();
+
+			capLen[l] = s - capStart[l];
+
+			int res = match(s, i);
+
+			if ( res == -1 )
+				capLen[l] = CAP_UNFINISHED;
+
+			return res;
+		}
+
+		protected int captureToClose(){
+			for ( int l = level -1; l >= 0; l-- ){
+				if ( capLen[l] == CAP_UNFINISHED )
+					return l;
+			}
+
+			throw new LuaException("invalid pattern capture");
+		}
+
+		protected int matchBalance( int s, Item item ){
+			if ( !inRange(s) || text.charAt(s) != item.c1 )
+				return -1;
+
+			int cont = 1;
+
+			while ( inRange(++s) ){
+				char c = text.charAt(s);
+
+				if ( c == item.c2 ){
+					if ( --cont == 0 )
+						return s +1;
+				} else if ( c == item.c1 ){
+					cont++;
+				}
+			}
+
+			return -1;
+		}
+
+		protected int matchCapture( int s, int l ){
+			if ( l < 0 || l >= level || capLen[l] == CAP_UNFINISHED )
+				throw new LuaException("invalid capture index");
+
+			int len		= capLen[l];
+			int from	= capStart[l];
+
+			if ( len < 0 )
+				return -1;
+
+			if ( length - s < len ){
+				hitEnd = true;
+				return -1;
+			}
+
+			for ( int index = 0; index < len; index++ ){
+				if ( text.charAt(from + index) != text.charAt(s + index) )
+					return -1;
+			}
+
+			return s + len;
+		}
+	}
+
+	protected static final int MAX_MATCH_DEPTH = 200;
+
+}
@@ -181,8 +181,8 @@ public class MathLib {
 				case 2: { //modf
 					Double arg = frame.getArg(0, Double.class);
 					
-					Double intPart	= (arg > 0 ? Math.floor(arg) : Math.ceil(arg));
-					Double fracPart	= arg - intPart;
+					double intPart	= (arg > 0 ? Math.floor(arg) : Math.ceil(arg));
+					double fracPart	= arg - intPart;
 					
 					frame.push(intPart);
 					frame.push(fracPart);
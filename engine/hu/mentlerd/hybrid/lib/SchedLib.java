@@ -0,0 +1,78 @@
+package hu.mentlerd.hybrid.lib;
+
+import hu.mentlerd.hybrid.CallFrame;
+import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.LuaClosure;
+import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaTable;
+import hu.mentlerd.hybrid.Scheduler;
+
+public class SchedLib implements Callable{
+	protected static String[] METHODS = {
+		"spawn",	"sleep",	"wait",
+		"notify",	"yield",	"now"
+	};
+
+	public static LuaTable bind( Scheduler scheduler ){
+		return bind( new LuaTable(), scheduler );
+	}
+	public static LuaTable bind( LuaTable into, Scheduler scheduler ){
+		for ( int index = 0; index < METHODS.length; index++ )
+			into.rawset( METHODS[index], new SchedLib(index, scheduler) );
+
+		return into;
+	}
+
+	protected final int methodID;
+	protected final Scheduler scheduler;
+
+	protected SchedLib( int methodID, Scheduler scheduler ){
+		this.methodID	= methodID;
+		this.scheduler	= scheduler;
+	}
+
+	public int call(CallFrame frame, int argCount) {
+		switch( methodID ){
+			case 0: { //spawn
+				Object func = frame.getArg(0);
+
+				if ( !(func instanceof LuaClosure) )
+					throw new LuaException("argument must be a lua function");
+
+				Object[] args = new Object[ Math.max(argCount -1, 0) ];
+				for ( int index = 0; index < args.length; index++ )
+					args[index] = frame.get(index +1);
+
+				frame.push( scheduler.spawn((LuaClosure) func, args) );
+				return 1;
+			}
+
+			case 1: //sleep
+				scheduler.sleep(frame, frame.getArg(0, Double.class).longValue());
+				return 0;
+
+			case 2: //wait
+				scheduler.await(frame, frame.getArg(0));
+				return 0;
+
+			case 3: { //notify
+				Object[] values = new Object[ Math.max(argCount -1, 0) ];
+				for ( int index = 0; index < values.length; index++ )
+					values[index] = frame.get(index +1);
+
+				frame.push( scheduler.signal(frame.getArg(0), values) );
+				return 1;
+			}
+
+			case 4: //yield
+				scheduler.yield(frame);
+				return 0;
+
+			case 5: //now
+				frame.push( (double) scheduler.now() );
+				return 1;
+		}
+
+		return 0;
+	}
+}
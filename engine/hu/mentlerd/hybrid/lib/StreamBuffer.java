@@ -0,0 +1,118 @@
+package hu.mentlerd.hybrid.lib;
+
+import hu.mentlerd.hybrid.LuaException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A window of characters over a Reader, used to match patterns on text that is too
+ * large to be held in memory. (See string.gsub and string.gmatch)
+ *
+ * Characters are read in chunks when the matcher runs out of them, and the ones that
+ * are no longer needed are discarded from the front, so only the text of the match in
+ * progress is kept.
+ */
+public class StreamBuffer implements CharSequence {
+
+	public static final int CHUNK_SIZE = 8192;
+
+	protected final Reader reader;
+
+	protected char[] chars = new char[CHUNK_SIZE];
+	protected int length;
+
+	//Count of characters discarded so far, and the last of them
+	protected int offset;
+	protected char previous;
+
+	protected boolean exhausted;
+
+	public StreamBuffer( Reader reader ){
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads the next chunk of characters
+	 *
+	 * @return False if the reader has no more characters
+	 */
+	public boolean fill(){
+		if ( exhausted )
+			return false;
+
+		if ( chars.length - length < CHUNK_SIZE ){
+			char[] grown = new char[ Math.max(chars.length * 2, length + CHUNK_SIZE) ];
+			System.arraycopy(chars, 0, grown, 0, length);
+
+			chars = grown;
+		}
+
+		try {
+			int read = reader.read(chars, length, CHUNK_SIZE);
+
+			if ( read == -1 ){
+				exhausted = true;
+				return false;
+			}
+
+			length += read;
+			return true;
+		} catch ( IOException err ){
+			throw new LuaException("read error: " + err.getMessage());
+		}
+	}
+
+	/**
+	 * Drops the given count of characters from the front of the window
+	 */
+	public void discard( int count ){
+		if ( count == 0 )
+			return;
+
+		previous = chars[count -1];
+		offset  += count;
+
+		System.arraycopy(chars, count, chars, 0, length - count);
+		length -= count;
+	}
+
+	/**
+	 * Returns the position of the window in the whole text, the count of characters
+	 * discarded so far
+	 */
+	public int getOffset(){
+		return offset;
+	}
+
+	/**
+	 * Returns the character before the window, or '\0' if nothing was discarded yet
+	 */
+	public char getPrevious(){
+		return previous;
+	}
+
+	public boolean isExhausted(){
+		return exhausted;
+	}
+
+	public int length(){
+		return length;
+	}
+
+	public char charAt( int index ){
+		if ( index >= length )
+			throw new IndexOutOfBoundsException();
+
+		return chars[index];
+	}
+
+	public CharSequence subSequence( int start, int end ){
+		return new String(chars, start, end - start);
+	}
+
+	public String toString(){
+		return new String(chars, 0, length);
+	}
+
+}
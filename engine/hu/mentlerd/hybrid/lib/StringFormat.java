@@ -0,0 +1,493 @@
+package hu.mentlerd.hybrid.lib;
+
+import hu.mentlerd.hybrid.CallFrame;
+import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaUtil;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed string.format format. The format is split once into literal text and
+ * directives, (Flags, width, precision and conversion) and every call only walks the
+ * list, appending the arguments straight from the frame.
+ *
+ * Conversions follow the C printf rules used by the reference implementation: floating
+ * point values are rounded half to even from their exact binary value, and integer
+ * conversions truncate their argument.
+ */
+public final class StringFormat {
+
+	public static final int MAX_WIDTH	= 99;
+
+	protected static final String FLAGS	= "-+ #0";
+	protected static final String CONVERSIONS = "cdiouxXeEfgGqs";
+
+	protected static class Directive {
+		protected String literal;
+
+		protected char conversion;
+		protected boolean left, plus, space, alt, zero;
+
+		protected int width;
+		protected int precision = -1;
+	}
+
+	public static StringFormat compile( String format ){
+		return new StringFormat(format);
+	}
+
+	protected final String format;
+	protected final Directive[] directives;
+
+	protected StringFormat( String format ){
+		this.format		= format;
+		this.directives	= parse();
+	}
+
+	public String getFormat(){
+		return format;
+	}
+
+	/*
+	 * Parsing
+	 */
+	private Directive[] parse(){
+		List<Directive> list	= new ArrayList<Directive>();
+		StringBuilder text		= new StringBuilder();
+
+		int len = format.length();
+		int pos = 0;
+
+		while( pos < len ){
+			char c = format.charAt(pos++);
+
+			if ( c != '%' ){
+				text.append(c);
+				continue;
+			}
+
+			if ( pos == len )
+				throw new LuaException("invalid option '%' to 'format'");
+
+			if ( format.charAt(pos) == '%' ){
+				text.append('%');
+				pos++;
+				continue;
+			}
+
+			if ( text.length() > 0 ){
+				Directive literal = new Directive();
+					literal.literal = text.toString();
+
+				list.add(literal);
+				text.setLength(0);
+			}
+
+			Directive dir = new Directive();
+
+			//Flags
+			int flags = pos;
+			while( pos < len && FLAGS.indexOf(format.charAt(pos)) != -1 ){
+				switch( format.charAt(pos++) ){
+					case '-': dir.left	= true; break;
+					case '+': dir.plus	= true; break;
+					case ' ': dir.space	= true; break;
+					case '#': dir.alt	= true; break;
+					case '0': dir.zero	= true; break;
+				}
+			}
+
+			if ( pos - flags > FLAGS.length() )
+				throw new LuaException("invalid format (repeated flags)");
+
+			//Width, and precision (Two digits at most)
+			int start = pos;
+			while( pos < len && isDigit(format.charAt(pos)) )
+				dir.width = dir.width * 10 + (format.charAt(pos++) - '0');
+
+			if ( pos - start > 2 )
+				throw new LuaException("invalid format (width or precision too long)");
+
+			if ( pos < len && format.charAt(pos) == '.' ){
+				start = ++pos;
+				dir.precision = 0;
+
+				while( pos < len && isDigit(format.charAt(pos)) )
+					dir.precision = dir.precision * 10 + (format.charAt(pos++) - '0');
+
+				if ( pos - start > 2 )
+					throw new LuaException("invalid format (width or precision too long)");
+			}
+
+			if ( pos == len || CONVERSIONS.indexOf(format.charAt(pos)) == -1 ){
+				String option = ( pos == len ? format.substring(flags -1) : format.substring(flags -1, pos +1) );
+				throw new LuaException("invalid option '" + option + "' to 'format'");
+			}
+
+			dir.conversion = format.charAt(pos++);
+			list.add(dir);
+		}
+
+		if ( text.length() > 0 ){
+			Directive literal = new Directive();
+				literal.literal = text.toString();
+
+			list.add(literal);
+		}
+
+		return list.toArray( new Directive[list.size()] );
+	}
+
+	private static boolean isDigit( char c ){
+		return c >= '0' && c <= '9';
+	}
+
+	/*
+	 * Formatting
+	 */
+
+	/**
+	 * Formats the arguments of the frame, starting at the given index
+	 */
+	public void format( CallFrame frame, StringBuilder sb, int from ){
+		int arg = from;
+
+		for ( Directive dir : directives ){
+			if ( dir.literal != null ){
+				sb.append(dir.literal);
+				continue;
+			}
+
+			int index = arg++;
+
+			switch( dir.conversion ){
+				case 'c':
+					sb.append( (char) toInteger(frame, index) );
+					break;
+
+				case 'd':
+				case 'i': {
+					long value		= toInteger(frame, index);
+					String digits	= Long.toString( Math.abs(value) );
+
+					if ( value == Long.MIN_VALUE )
+						digits = digits.substring(1);
+
+					appendInteger(sb, dir, value < 0, digits, "");
+					break;
+				}
+
+				case 'o':
+				case 'u':
+				case 'x':
+				case 'X': {
+					long value = toInteger(frame, index);
+					String digits, prefix = "";
+
+					switch( dir.conversion ){
+						case 'o':
+							digits = Long.toOctalString(value);
+
+							if ( dir.alt && value != 0 )
+								prefix = "0";
+							break;
+
+						case 'u':
+							digits = toUnsignedString(value);
+							break;
+
+						default:
+							digits = Long.toHexString(value);
+
+							if ( dir.alt && value != 0 )
+								prefix = "0x";
+
+							if ( dir.conversion == 'X' ){
+								digits = digits.toUpperCase();
+								prefix = prefix.toUpperCase();
+							}
+					}
+
+					appendInteger(sb, dir, false, digits, prefix);
+					break;
+				}
+
+				case 'e':
+				case 'E':
+				case 'f':
+				case 'g':
+				case 'G':
+					appendFloat(sb, dir, toNumber(frame, index));
+					break;
+
+				case 'q':
+					appendQuoted(sb, toText(frame, index));
+					break;
+
+				case 's': {
+					String string = toText(frame, index);
+
+					if ( dir.precision >= 0 && dir.precision < string.length() )
+						string = string.substring(0, dir.precision);
+
+					pad(sb, dir, "", string, false);
+					break;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Arguments
+	 */
+	private static Object getArg( CallFrame frame, int index ){
+		if ( index >= frame.argCount )
+			throw LuaUtil.argError(index, "no value");
+
+		return frame.get(index);
+	}
+
+	private static double toNumber( CallFrame frame, int index ){
+		Object value	= getArg(frame, index);
+		Double number	= LuaUtil.rawToNumber(value);
+
+		if ( number == null )
+			throw LuaUtil.argError(index, Double.class, value, frame.getPlatform());
+
+		return number;
+	}
+
+	private static long toInteger( CallFrame frame, int index ){
+		return (long) toNumber(frame, index);
+	}
+
+	private static String toText( CallFrame frame, int index ){
+		Object value = getArg(frame, index);
+
+		if ( value instanceof Double || LuaUtil.isString(value) )
+			return LuaUtil.rawToString(value);
+
+		return LuaUtil.rawToString( frame.getThread().tostring(value) );
+	}
+
+	private static String toUnsignedString( long value ){
+		if ( value >= 0 )
+			return Long.toString(value);
+
+		return BigInteger.valueOf(value).add( BigInteger.ONE.shiftLeft(64) ).toString();
+	}
+
+	/*
+	 * Output
+	 */
+	private static void pad( StringBuilder sb, Directive dir, String prefix, String body, boolean zeroPad ){
+		int fill = dir.width - prefix.length() - body.length();
+
+		if ( fill <= 0 ){
+			sb.append(prefix).append(body);
+		} else if ( dir.left ){
+			sb.append(prefix).append(body);
+			repeat(sb, ' ', fill);
+		} else if ( zeroPad ){
+			sb.append(prefix);
+			repeat(sb, '0', fill);
+			sb.append(body);
+		} else {
+			repeat(sb, ' ', fill);
+			sb.append(prefix).append(body);
+		}
+	}
+
+	private static void repeat( StringBuilder sb, char c, int count ){
+		for ( int index = 0; index < count; index++ )
+			sb.append(c);
+	}
+
+	private static String sign( Directive dir, boolean negative ){
+		if ( negative )	return "-";
+		if ( dir.plus )	return "+";
+		if ( dir.space )	return " ";
+
+		return "";
+	}
+
+	private static void appendInteger( StringBuilder sb, Directive dir, boolean negative, String digits, String prefix ){
+		if ( dir.precision >= 0 ){
+			if ( dir.precision == 0 && digits.equals("0") )
+				digits = "";
+
+			if ( digits.length() < dir.precision ){
+				StringBuilder padded = new StringBuilder(dir.precision);
+
+				repeat(padded, '0', dir.precision - digits.length());
+				digits = padded.append(digits).toString();
+			}
+		}
+
+		//Zero padding is ignored with an explicit precision
+		pad(sb, dir, sign(dir, negative) + prefix, digits, dir.zero && !dir.left && dir.precision < 0);
+	}
+
+	private static void appendFloat( StringBuilder sb, Directive dir, double value ){
+		boolean negative	= ( value < 0 || (value == 0 && 1 / value < 0) );
+		boolean upper		= Character.isUpperCase(dir.conversion);
+
+		if ( Double.isNaN(value) || Double.isInfinite(value) ){
+			String body = ( Double.isNaN(value) ? "nan" : "inf" );
+
+			pad(sb, dir, sign(dir, negative && !Double.isNaN(value)), upper ? body.toUpperCase() : body, false);
+			return;
+		}
+
+		int precision = ( dir.precision < 0 ? 6 : dir.precision );
+		String body;
+
+		switch( dir.conversion ){
+			case 'f':
+				body = formatFixed(Math.abs(value), precision, dir.alt);
+				break;
+
+			case 'e':
+			case 'E':
+				body = formatExponent(Math.abs(value), precision, dir.alt, upper);
+				break;
+
+			default:
+				body = formatGeneral(Math.abs(value), precision, dir.alt, upper);
+		}
+
+		pad(sb, dir, sign(dir, negative), body, dir.zero && !dir.left);
+	}
+
+	private static String formatFixed( double value, int precision, boolean alt ){
+		String body;
+
+		if ( value < 1e15 && value == Math.rint(value) ){ //Whole numbers need no rounding
+			StringBuilder fixed = new StringBuilder( Long.toString((long) value) );
+
+			if ( precision > 0 )
+				fixed.append('.');
+
+			repeat(fixed, '0', precision);
+			body = fixed.toString();
+		} else {
+			body = new BigDecimal(value).setScale(precision, RoundingMode.HALF_EVEN).toPlainString();
+		}
+
+		if ( alt && precision == 0 )
+			body += ".";
+
+		return body;
+	}
+
+	/**
+	 * Rounds the value to the given count of significant digits
+	 */
+	private static BigDecimal roundDigits( double value, int digits ){
+		return new BigDecimal(value).round( new MathContext(digits, RoundingMode.HALF_EVEN) );
+	}
+
+	private static int exponentOf( BigDecimal value ){
+		return value.precision() - value.scale() -1;
+	}
+
+	private static String formatExponent( double value, int precision, boolean alt, boolean upper ){
+		StringBuilder body = new StringBuilder();
+		int exponent = 0;
+
+		if ( value == 0 ){
+			body.append('0');
+			repeat(body, '0', precision);
+		} else {
+			BigDecimal rounded = roundDigits(value, precision +1);
+
+			exponent = exponentOf(rounded);
+			body.append( rounded.unscaledValue().toString() );
+
+			repeat(body, '0', precision +1 - body.length()); //Trailing zeros are not kept
+		}
+
+		if ( precision > 0 || alt )
+			body.insert(1, '.');
+
+		body.append( upper ? 'E' : 'e' );
+		body.append( exponent < 0 ? '-' : '+' );
+
+		exponent = Math.abs(exponent);
+		if ( exponent < 10 )
+			body.append('0');
+
+		return body.append(exponent).toString();
+	}
+
+	private static String formatGeneral( double value, int precision, boolean alt, boolean upper ){
+		if ( precision == 0 )
+			precision = 1;
+
+		int exponent = ( value == 0 ? 0 : exponentOf( roundDigits(value, precision) ) );
+		String body;
+
+		if ( exponent < -4 || exponent >= precision ){
+			body = formatExponent(value, precision -1, alt, upper);
+		} else {
+			body = formatFixed(value, precision -1 - exponent, alt);
+		}
+
+		if ( alt )
+			return body;
+
+		//Strip the trailing zeros of the fraction
+		int mark	= body.indexOf( upper ? 'E' : 'e' );
+		int end		= ( mark == -1 ? body.length() : mark );
+
+		if ( body.indexOf('.') == -1 )
+			return body;
+
+		int cut = end;
+		while( body.charAt(cut -1) == '0' )
+			cut--;
+
+		if ( body.charAt(cut -1) == '.' )
+			cut--;
+
+		return body.substring(0, cut) + body.substring(end);
+	}
+
+	private static void appendQuoted( StringBuilder sb, String string ){
+		sb.append('"');
+
+		for ( int index = 0; index < string.length(); index++ ){
+			char c = string.charAt(index);
+
+			switch( c ){
+				case '"':
+				case '\\':
+					sb.append('\\').append(c);
+					break;
+
+				case '\n':
+					sb.append("\\\n");
+					break;
+
+				case '\r':
+					sb.append("\\r");
+					break;
+
+				case '\0':
+					sb.append("\\000");
+					break;
+
+				default:
+					sb.append(c);
+			}
+		}
+
+		sb.append('"');
+	}
+
+}
@@ -2,23 +2,27 @@ package hu.mentlerd.hybrid.lib;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.Reader;
+import java.io.Writer;
 
+import hu.mentlerd.hybrid.BoundedCache;
 import hu.mentlerd.hybrid.BytecodeManager;
 import hu.mentlerd.hybrid.CallFrame;
 import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.LuaBuffer;
 import hu.mentlerd.hybrid.LuaClosure;
 import hu.mentlerd.hybrid.LuaException;
+import hu.mentlerd.hybrid.LuaRope;
+import hu.mentlerd.hybrid.LuaString;
 import hu.mentlerd.hybrid.LuaTable;
-import hu.mentlerd.hybrid.LuaThread;
 import hu.mentlerd.hybrid.LuaUtil;
+import hu.mentlerd.hybrid.Platform;
 
 public enum StringLib implements Callable{
 	
 	SUB {
 		public int call(CallFrame frame, int argCount) {
-			String string = frame.getArg(0, String.class);
+			CharSequence string = getChars(frame, 0);
 			
 			int start = frame.getIntArg(1);
 			int limit = frame.getIntArg(2, string.length());
@@ -39,8 +43,10 @@ public enum StringLib implements Callable{
 			//substring
 			if ( start > limit )
 				frame.push("");
+			else if ( string instanceof LuaString )
+				frame.push( ((LuaString) string).substring(start -1, limit) ); //Shares the bytes
 			else
-				frame.push( string.substring(start -1, limit) );
+				frame.push( intern(frame, string.toString().substring(start -1, limit)) );
 			
 			return 1;
 		}
@@ -48,21 +54,48 @@ public enum StringLib implements Callable{
 	
 	CHAR {
 		public int call(CallFrame frame, int argCount) {
-			StringBuilder sb = new StringBuilder();
+			char[] chars = new char[argCount];
 			
 			for ( int index = 0; index < argCount; index++ )
-				sb.append((char) frame.getIntArg(index));
+				chars[index] = toChar( frame.getIntArg(index), index );
 			
-			frame.push( sb.toString() );
+			frame.push( frame.getPlatform().getStringPool().intern(chars, 0, argCount) );
+			return 1;
+		}
+	},
+	FROMBYTES {
+		public int call(CallFrame frame, int argCount) {
+			LuaTable table	= frame.getArg(0, LuaTable.class);
+			
+			int start		= frame.getIntArg(1, 1);
+			int limit		= frame.getIntArg(2, table.size());
+			
+			if ( start < 1 )
+				start = 1;
+			
+			int count = Math.max(limit - start +1, 0);
+			char[] chars = new char[count];
+			
+			for ( int index = 0; index < count; index++ ){
+				Object value	= table.rawget(start + index);
+				int code		= ( value instanceof Double ? ((Double) value).intValue() : -1 );
+				
+				if ( code < 0 || code > 255 )
+					throw new LuaException("invalid value (at index " + (start + index) + ") in table for 'frombytes'");
+				
+				chars[index] = (char) code;
+			}
+			
+			frame.push( new String(chars) );
 			return 1;
 		}
 	},
 	BYTE {
 		public int call(CallFrame frame, int argCount) {
-			String string = frame.getArg(0, String.class);
+			CharSequence string = getChars(frame, 0);
 			
 			int start = frame.getIntArg(1, 1);
-			int limit = frame.getIntArg(2, 1);
+			int limit = frame.getIntArg(2, start);
 			
 			//Magic negative start/limit
 			int len = string.length();
@@ -83,13 +116,50 @@ public enum StringLib implements Callable{
 			if ( chars <= 0 )
 				return 0;
 			
+			if ( chars == 1 ){ //string.byte(s, i)
+				frame.push( LuaUtil.box( string.charAt(start -1) ) );
+				return 1;
+			}
+			
 			frame.setTop(chars);
 			for ( int index = 0; index < chars; index++ )
-				frame.set(index, Double.valueOf( string.charAt(index + start -1) ));
+				frame.set(index, LuaUtil.box( string.charAt(index + start -1) ));
 			
 			return chars;
 		}
 	},
+	BYTES {
+		public int call(CallFrame frame, int argCount) {
+			CharSequence string = getChars(frame, 0);
+			
+			int start = frame.getIntArg(1, 1);
+			int limit = frame.getIntArg(2, -1);
+			
+			//Magic negative start/limit
+			int len = string.length();
+			
+			if ( start < 0 )
+				start = start + len +1;
+			if ( start <= 0 )
+				start = 1;
+			
+			if ( limit < 0 )
+				limit = limit + len +1;
+			else if ( limit > len )
+				limit = len;
+			
+			int count = Math.max(limit - start +1, 0);
+			
+			//Sized to hold every byte in the array part
+			LuaTable table = new LuaTable(count, 1);
+			
+			for ( int index = 0; index < count; index++ )
+				table.rawset(index +1, LuaUtil.box( string.charAt(index + start -1) ));
+			
+			frame.push(table);
+			return 1;
+		}
+	},
 	
 	DUMP {
 		public int call(CallFrame frame, int argCount) {
@@ -99,7 +169,7 @@ public enum StringLib implements Callable{
 				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 				BytecodeManager.write(buffer, closure.proto);
 			
-				frame.push(buffer.toString());
+				frame.push( LuaString.wrap(buffer.toByteArray()) ); //Binary, keep the bytes
 				return 1;	
 			} catch ( IOException err ){
 				throw new LuaException(err);
@@ -111,7 +181,7 @@ public enum StringLib implements Callable{
 		public int call(CallFrame frame, int argCount) {
 			String string = frame.getArg(0, String.class);
 			
-			frame.push( string.toLowerCase() );
+			frame.push( intern(frame, string.toLowerCase()) );
 			return 1;
 		}
 	},
@@ -119,7 +189,7 @@ public enum StringLib implements Callable{
 		public int call(CallFrame frame, int argCount) {
 			String string = frame.getArg(0, String.class);
 			
-			frame.push( string.toUpperCase() );
+			frame.push( intern(frame, string.toUpperCase()) );
 			return 1;
 		}
 	},
@@ -136,7 +206,7 @@ public enum StringLib implements Callable{
 	
 	LEN {
 		public int call(CallFrame frame, int argCount) {
-			String string = frame.getArg(0, String.class);
+			CharSequence string = getChars(frame, 0);
 			
 			frame.push( string.length() );
 			return 1;
@@ -158,13 +228,12 @@ public enum StringLib implements Callable{
 	
 	FORMAT {
 		public int call(CallFrame frame, int argCount) {
-			String format = frame.getArg(0, String.class);
+			String format		= frame.getArg(0, String.class);
+			StringBuilder sb	= new StringBuilder();
 			
-			Object[] params = new Object[argCount -1];
-			for ( int index = 0; index < params.length; index++ )
-				params[index] = frame.get(index +1);
+			format(frame, sb, format, 1);
 			
-			frame.push( String.format(format, params) );
+			frame.push( sb.toString() );
 			return 1;
 		}
 	},
@@ -182,76 +251,103 @@ public enum StringLib implements Callable{
 	
 	GMATCH {
 		public int call(CallFrame frame, int argCount) {
-			String string	= frame.getArg(0, String.class);
+			StreamBuffer stream	= getStream(frame, 0);
+			CharSequence string	= ( stream != null ? stream : getChars(frame, 0) );
 			String pattern	= frame.getArg(1, String.class);
 			
-			frame.push( new MatchIterator(string, pattern) );
+			if ( pattern.startsWith("^") ) //Not an anchor in gmatch, match it literally
+				pattern = "%" + pattern;
+			
+			frame.push( new MatchIterator(string, compile(frame, pattern)) );
 			return 1;
 		}
 	},
 	
 	GSUB {
 		public int call(CallFrame frame, int argCount) {
-			String string	= frame.getArg(0, String.class);
+			StreamBuffer stream	= getStream(frame, 0);
+			CharSequence string	= ( stream != null ? stream : getChars(frame, 0) );
 			String pattern	= frame.getArg(1, String.class);
 			
-			Object object	= frame.getArg(2);
+			Object repl		= frame.getArg(2);
 			int limit		= frame.getIntArg(3, Integer.MAX_VALUE);
+			Object sink		= frame.getArgNull(4);
 			
-			if ( !( object instanceof String || object instanceof LuaClosure || 
-					object instanceof Callable || object instanceof LuaTable ) ){
+			if ( !( LuaUtil.isString(repl) || repl instanceof Double || repl instanceof LuaClosure || 
+					repl instanceof Callable || repl instanceof LuaTable ) ){
 				
 				throw LuaUtil.argError(2, "string/function/table expected");
 			}
 			
-			LuaThread thread = frame.getThread();
+			if ( !( sink == null || sink instanceof Writer || sink instanceof LuaBuffer || 
+					sink instanceof LuaClosure || sink instanceof Callable ) ){
+				
+				throw LuaUtil.argError(4, "writer/strbuf/function expected");
+			}
 			
-			Pattern finder	= compile(pattern);
-			Matcher matcher	= finder.matcher(string);
+			LuaPattern finder			= compile(frame, pattern);
+			LuaPattern.Matcher matcher	= finder.matcher(string);
 			
 			StringBuilder sb = new StringBuilder();
 			
-			int index = 0;
-			int last = 0;
+			int count	= 0;
+			int src		= 0;
 			
-			while( index < limit ){ //Iterate over
-				if ( !matcher.find() )
-					break;
+			while( count < limit ){
+				if ( stream != null && src == string.length() && stream.fill() )
+					matcher.update();
 				
-				//Append inner parts
-				int start = matcher.start();
-			
-				if ( last < start )
-					sb.append( string.substring(last, start) );
+				boolean found = matcher.matchAt(src);
 				
-				last = matcher.end();
+				if ( stream != null && matcher.hitEnd() && stream.fill() ){ //The match may continue in the next chunk
+					matcher.update();
+					continue;
+				}
 				
-				//Replace
-				String replace = LuaUtil.rawToString(object);
+				if ( found ){
+					count++;
+					addValue(frame, sb, matcher, repl);
+				}
 				
-				if ( replace == null ){
-					String match = matcher.group();
-					Object value = null;
-					
-					if ( object instanceof LuaTable )
-						value = ((LuaTable) object).rawget(match);
-					else
-						value = thread.call(object, match);
-					
-					if ( value == null )
-						replace = match;
-					else
-						replace = LuaUtil.rawToString(value);
+				if ( found && matcher.end() > src ){
+					src = matcher.end();
+				} else if ( src < string.length() ){
+					sb.append( string.charAt(src++) );
+				} else {
+					break;
 				}
 				
-				sb.append(replace);
+				if ( finder.isAnchored() )
+					break;
+				
+				//Keep only the text of the next match in memory
+				if ( sink != null && sb.length() >= StreamBuffer.CHUNK_SIZE )
+					write(frame, sink, sb);
+				
+				if ( stream != null && src >= StreamBuffer.CHUNK_SIZE ){
+					stream.discard(src);
+					matcher.update();
+					
+					src = 0;
+				}
 			}
 			
 			//Append the ending
-			sb.append( string.substring(last) );
+			do {
+				sb.append( string, src, string.length() );
+				
+				if ( stream != null ){
+					stream.discard( stream.length() );
+					src = 0;
+				}
+				
+				if ( sink != null )
+					write(frame, sink, sb);
+			} while ( stream != null && stream.fill() );
 			
-			frame.push( sb.toString() );
-			return 1;
+			frame.push( sink != null ? sink : sb.toString() );
+			frame.push( count );
+			return 2;
 		}
 	};
 	
@@ -264,10 +360,189 @@ public enum StringLib implements Callable{
 		return (LuaClosure) obj;
 	}
 	
-	protected static Pattern compile( String pattern ){
-		pattern = pattern.replace("\\", "\\\\").replace('%', '\\');
+	/**
+	 * Short results are likely to end up as table keys, pooling them lets lookups
+	 * succeed on an identity check. (See {@link Platform#getStringPool()})
+	 */
+	protected static String intern( CallFrame frame, String string ){
+		return frame.getPlatform().intern(string);
+	}
+	
+	protected static char toChar( int value, int index ){
+		if ( value < 0 || value > 255 )
+			throw LuaUtil.argError(index, "invalid value");
+		
+		return (char) value;
+	}
+	
+	/**
+	 * Formats the arguments starting at the given index into the builder
+	 */
+	public static void format( CallFrame frame, StringBuilder sb, String format, int from ){
+		BoundedCache<String, StringFormat> cache = frame.getPlatform().getFormatCache();
+		StringFormat compiled = cache.get(format);
+		
+		if ( compiled == null ){
+			compiled = StringFormat.compile(format);
+			cache.put(format, compiled);
+		}
+		
+		compiled.format(frame, sb, from);
+	}
+	
+	/**
+	 * Returns a string argument, keeping byte strings, and character sequences given
+	 * by Java as they are
+	 */
+	protected static CharSequence getChars( CallFrame frame, int n ){
+		Object arg = frame.getArg(n);
+		
+		if ( arg instanceof CharSequence && !(arg instanceof LuaRope) )
+			return (CharSequence) arg;
+		
+		return frame.getArg(n, String.class);
+	}
+	
+	/**
+	 * Returns a buffer over a Reader argument, or null if the argument is not a Reader
+	 */
+	protected static StreamBuffer getStream( CallFrame frame, int n ){
+		Object arg = frame.getArgNull(n);
+		
+		if ( arg instanceof Reader )
+			return new StreamBuffer((Reader) arg);
+		
+		return null;
+	}
+	
+	/**
+	 * Writes, and clears the contents of the builder into a sink of gsub
+	 */
+	protected static void write( CallFrame frame, Object sink, StringBuilder sb ){
+		if ( sb.length() == 0 )
+			return;
+		
+		if ( sink instanceof Writer ){
+			try {
+				((Writer) sink).append(sb);
+			} catch ( IOException err ){
+				throw new LuaException("write error: " + err.getMessage());
+			}
+		} else if ( sink instanceof LuaBuffer ){
+			((LuaBuffer) sink).getBuilder().append(sb);
+		} else {
+			frame.getThread().call(sink, sb.toString());
+		}
+		
+		sb.setLength(0);
+	}
+	
+	protected static int indexOf( CharSequence string, String pattern, int from ){
+		if ( string instanceof String )
+			return ((String) string).indexOf(pattern, from);
+		
+		int last = string.length() - pattern.length();
+		
+		search:
+		for ( int index = from; index <= last; index++ ){
+			for ( int offset = 0; offset < pattern.length(); offset++ ){
+				if ( string.charAt(index + offset) != pattern.charAt(offset) )
+					continue search;
+			}
+			
+			return index;
+		}
+		
+		return -1;
+	}
+	
+	protected static LuaPattern compile( CallFrame frame, String pattern ){
+		BoundedCache<String, LuaPattern> cache = frame.getPlatform().getPatternCache();
+		LuaPattern compiled = cache.get(pattern);
+		
+		if ( compiled == null ){ //Compiled patterns are immutable, a racing compile does no harm
+			compiled = LuaPattern.compile(pattern);
+			cache.put(pattern, compiled);
+		}
+		
+		return compiled;
+	}
+	
+	protected static void pushCaptures( CallFrame frame, LuaPattern.Matcher matcher, boolean wholeIfNone ){
+		int count = matcher.groupCount();
+		
+		if ( count == 0 && wholeIfNone )
+			count = 1;
+		
+		for ( int index = 0; index < count; index++ )
+			frame.push( capture(frame, matcher, index) );
+	}
+	
+	protected static Object capture( CallFrame frame, LuaPattern.Matcher matcher, int index ){
+		Object value = matcher.group(index);
+		
+		if ( value instanceof String )
+			return intern(frame, (String) value);
 		
-		return Pattern.compile(pattern);
+		return value;
+	}
+	
+	protected static void addValue( CallFrame frame, StringBuilder sb, LuaPattern.Matcher matcher, Object repl ){
+		CharSequence text = matcher.getText();
+		
+		int start	= matcher.start();
+		int end		= matcher.end();
+		
+		Object value;
+		
+		if ( LuaUtil.isString(repl) || repl instanceof Double ){ //Replacement string, with %0-%9
+			String string = LuaUtil.rawToString(repl);
+			int len = string.length();
+			
+			for ( int index = 0; index < len; index++ ){
+				char c = string.charAt(index);
+				
+				if ( c != '%' || ++index == len ){
+					sb.append(c);
+					continue;
+				}
+				
+				c = string.charAt(index);
+				
+				if ( c == '0' ){
+					sb.append(text, start, end);
+				} else if ( c >= '1' && c <= '9' ){
+					sb.append( LuaUtil.rawToString(matcher.group(c - '1')) );
+				} else {
+					sb.append(c);
+				}
+			}
+			
+			return;
+		}
+		
+		if ( repl instanceof LuaTable ){
+			value = ((LuaTable) repl).rawget( capture(frame, matcher, 0) );
+		} else {
+			int count = Math.max(matcher.groupCount(), 1);
+			
+			Object[] args = new Object[count];
+			for ( int index = 0; index < count; index++ )
+				args[index] = capture(frame, matcher, index);
+			
+			value = frame.getThread().call(repl, args);
+		}
+		
+		if ( value == null || value == Boolean.FALSE ){ //Keep the original
+			sb.append(text, start, end);
+		} else {
+			String string = LuaUtil.rawToString(value);
+			
+			if ( string == null )
+				throw new LuaException("invalid replacement value (a " + frame.getPlatform().getTypename(value) + ")");
+			
+			sb.append(string);
+		}
 	}
 	
 	protected static final String SPECIALS = "^$*+?.([%-"; 
@@ -281,52 +556,42 @@ public enum StringLib implements Callable{
 	}
 	
 	protected static int find(CallFrame frame, int argCount, boolean isFind){
-		String string	= frame.getArg(0, String.class);
+		CharSequence string	= getChars(frame, 0);
 		String pattern	= frame.getArg(1, String.class);
 		
-		int init = frame.getIntArg(2, 1) -1;
+		int init = frame.getIntArg(2, 1);
 		int len = string.length();
 		
 		boolean plain = LuaUtil.toBoolean( frame.getArg(3, Boolean.FALSE) );
 		
-		//Magic negative limit
+		//Magic negative init
 		if ( init < 0 )
-			init = Math.max( init + len, 0 );
-		else if ( init > len )
-			init = len;
+			init = Math.max( init + len +1, 0 );
+		
+		init = Math.min( Math.max(init -1, 0), len );
 		
 		//Do plain search on request, or no specials
 		if ( isFind && ( plain || !hasSpecials(pattern) ) ){
-			int pos = string.indexOf(pattern, init);
+			int pos = indexOf(string, pattern, init);
 			
 			if ( pos > -1 ){
-				frame.push(pos);
-				frame.push(pos + string.length());
+				frame.push(pos +1);
+				frame.push(pos + pattern.length());
 				return 2;
 			}
 		} else {
-			if ( init != 0 )
-				string = string.substring(init);
-			
-			Pattern finder	= compile(pattern);
-			Matcher matcher	= finder.matcher(string);
+			LuaPattern.Matcher matcher = compile(frame, pattern).matcher(string);
 			
-			if ( matcher.find() ){
-				int rets = matcher.groupCount();
+			if ( matcher.find(init) ){
+				int top = frame.getTop();
 				
-				if ( isFind ){ //Push region in before matches
-					frame.push( matcher.start() );
+				if ( isFind ){ //Push region in before captures
+					frame.push( matcher.start() +1 );
 					frame.push( matcher.end() );
-					rets += 2;
-				} else {
-					frame.push( matcher.group() );
-					rets += 1;
 				}
 				
-				for ( int index = 0; index < matcher.groupCount(); index++ ) //Push groups
-					frame.push( matcher.group(index +1) );
-				
-				return rets;
+				pushCaptures(frame, matcher, !isFind);
+				return frame.getTop() - top;
 			}
 		}
 		
@@ -335,31 +600,60 @@ public enum StringLib implements Callable{
 	}
 
 	protected static class MatchIterator implements Callable{
-		protected Matcher matcher;
+		protected LuaPattern.Matcher matcher;
+		protected int position;
 		
-		public MatchIterator( String string, String pattern ){
-			Pattern finder	= compile(pattern);
-			this.matcher	= finder.matcher(string);
+		public MatchIterator( CharSequence string, LuaPattern pattern ){
+			this.matcher = pattern.matcher(string);
 		}
 		
 		public int call(CallFrame frame, int argCount) {
-			if ( matcher.find() ){
-				int groups = matcher.groupCount();
+			CharSequence text	= matcher.getText();
+			StreamBuffer stream	= ( text instanceof StreamBuffer ? (StreamBuffer) text : null );
+			
+			if ( stream != null && position >= StreamBuffer.CHUNK_SIZE && position <= text.length() ){ //Drop the text already matched
+				stream.discard(position);
+				matcher.update();
+				
+				position = 0;
+			}
+			
+			for ( int src = position; src <= text.length(); src++ ){
+				if ( stream != null && src == text.length() && stream.fill() )
+					matcher.update();
+				
+				boolean found = matcher.matchAt(src);
 				
-				if ( groups == 0 ){
-					frame.push( matcher.group() ); //Push the matched region
+				if ( stream != null && matcher.hitEnd() && stream.fill() ){ //The match may continue in the next chunk
+					matcher.update();
 					
-					return 1;
-				} else {
-					for ( int index = 0; index < groups; index++ ) //Push groups
-						frame.push( matcher.group(index +1) );
+					src--;
+					continue;
+				}
+				
+				if ( found ){
+					int end = matcher.end();
 					
-					return groups;
+					position = ( end == src ) ? end +1 : end; //Step over empty matches
+					
+					int top = frame.getTop();
+					pushCaptures(frame, matcher, true);
+					
+					return frame.getTop() - top;
+				}
+				
+				if ( stream != null && src >= StreamBuffer.CHUNK_SIZE ){ //Drop the text already searched
+					stream.discard(src);
+					matcher.update();
+					
+					src = -1;
 				}
-			} else {
-				frame.push(null);
-				return 1;
 			}
+			
+			position = text.length() +1;
+			
+			frame.push(null);
+			return 1;
 		}
 	}
 	
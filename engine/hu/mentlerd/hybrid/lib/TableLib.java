@@ -2,6 +2,7 @@ package hu.mentlerd.hybrid.lib;
 
 import hu.mentlerd.hybrid.CallFrame;
 import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.LuaException;
 import hu.mentlerd.hybrid.LuaTable;
 import hu.mentlerd.hybrid.LuaUtil;
 
@@ -20,13 +21,31 @@ public enum TableLib implements Callable{
 				return 1;
 			}
 
-			StringBuilder result = new StringBuilder();
+			//Collect the strings first, so the result can be sized exactly
+			String[] parts	= new String[limit - start +1];
+			int length		= 0;
 			
 			for ( int index = start; index <= limit; index++ ){
-				result.append( LuaUtil.rawToString(table.rawget(index)) );
+				Object value	= table.rawget(index);
+				String string	= ( value == null ? null : LuaUtil.rawToString(value) );
 				
-				if ( sep != null && index != limit )
+				if ( string == null )
+					throw new LuaException("invalid value (at index " + index + ") in table for 'concat'");
+				
+				parts[index - start] = string;
+				length += string.length();
+			}
+			
+			if ( sep != null )
+				length += sep.length() * (parts.length -1);
+			
+			StringBuilder result = new StringBuilder(length);
+			
+			for ( int index = 0; index < parts.length; index++ ){
+				if ( sep != null && index > 0 )
 					result.append(sep);
+				
+				result.append(parts[index]);
 			}
 			
 			frame.push(result.toString());
@@ -86,6 +105,25 @@ public enum TableLib implements Callable{
 			LuaUtil.sort(table, frame.getThread(), comp);
 			return 0;
 		}
+	},
+	
+	FREEZE {
+		public int call(CallFrame frame, int argCount) {
+			LuaTable table	= frame.getArg(0, LuaTable.class);
+			
+			table.freeze();
+			
+			frame.push(table);
+			return 1;
+		}
+	},
+	ISFROZEN {
+		public int call(CallFrame frame, int argCount) {
+			LuaTable table	= frame.getArg(0, LuaTable.class);
+			
+			frame.push(table.isFrozen());
+			return 1;
+		}
 	};
 	
 	public static LuaTable bind(){
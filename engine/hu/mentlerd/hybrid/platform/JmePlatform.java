@@ -1,21 +1,28 @@
 package hu.mentlerd.hybrid.platform;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import hu.mentlerd.hybrid.Callable;
+import hu.mentlerd.hybrid.Channel;
 import hu.mentlerd.hybrid.Coroutine;
+import hu.mentlerd.hybrid.LuaBuffer;
 import hu.mentlerd.hybrid.LuaClosure;
+import hu.mentlerd.hybrid.LuaRope;
+import hu.mentlerd.hybrid.LuaString;
 import hu.mentlerd.hybrid.LuaTable;
 import hu.mentlerd.hybrid.Platform;
 import hu.mentlerd.hybrid.lib.BaseLib;
+import hu.mentlerd.hybrid.lib.BufferLib;
+import hu.mentlerd.hybrid.lib.ChannelLib;
 import hu.mentlerd.hybrid.lib.CoroutineLib;
 import hu.mentlerd.hybrid.lib.MathLib;
 import hu.mentlerd.hybrid.lib.StringLib;
 import hu.mentlerd.hybrid.lib.TableLib;
 
 public class JmePlatform extends Platform{
-	protected Map<Class<?>, LuaTable> metatables = new HashMap<Class<?>, LuaTable>();
+	//Read by every thread running on the platform, and may be registered to any time
+	protected Map<Class<?>, LuaTable> metatables = new ConcurrentHashMap<Class<?>, LuaTable>();
 	protected LuaTable env = new LuaTable();
 	
 	private LuaTable register( Class<?> clazz, String type ){
@@ -58,8 +65,25 @@ public class JmePlatform extends Platform{
 			meta.rawset("__index", string);
 			meta.rawset("__len", StringLib.LEN);
 		
+		register(LuaString.class, meta); //Byte strings behave the same
+		register(LuaRope.class, meta);
+		
+		LuaTable strbuf = BufferLib.bind();
+		env.rawset("strbuf", strbuf);
+		
+		meta = register(LuaBuffer.class, "strbuf");
+			meta.rawset("__index", strbuf);
+			meta.rawset("__len", BufferLib.LEN);
+			meta.rawset("__tostring", BufferLib.TOSTRING);
+		
 		meta = register(Coroutine.class, "thread");
 			meta.rawset("__index", coroutine);
+		
+		LuaTable channel = ChannelLib.bind();
+		env.rawset("channel", channel);
+		
+		meta = register(Channel.class, "channel");
+			meta.rawset("__index", channel);
 			
 		//Env globals
 		env.rawset("_G", env);
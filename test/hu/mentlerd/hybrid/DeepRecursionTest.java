@@ -0,0 +1,48 @@
+package hu.mentlerd.hybrid;
+
+import hu.mentlerd.hybrid.platform.JmePlatform;
+
+/**
+ * Raises the stack limits, and recovers from a runaway recursion with pcall. The stack
+ * trace of the error has to stay short, regardless of the depth.
+ */
+public class DeepRecursionTest {
+
+	protected static final String SOURCE =
+		"local function recurse( n ) return 1 + recurse(n +1) end\n" +
+		"local ok, err, trace = pcall(recurse, 1)\n" +
+		"return ok, err, trace";
+
+	public static void main( String[] args ) throws Exception {
+		JmePlatform platform	= new JmePlatform();
+		LuaThread thread		= new LuaThread(platform, platform.getEnv());
+
+		thread.setStackLimits(4000000, 200000);
+
+		Prototype proto = LuaClosure.compile(SOURCE, "deep");
+		Object[] results = thread.callMultret(new LuaClosure(proto, platform.getEnv()), 0);
+
+		check( Boolean.FALSE.equals(results[0]), "pcall should have failed" );
+		check( String.valueOf(results[1]).toLowerCase().contains("stack overflow"), "unexpected error: " + results[1] );
+
+		String trace = (String) results[2];
+		int lines = trace.split("\n").length;
+
+		check( trace.contains("levels skipped"), "the middle of the trace was not skipped" );
+		check( lines <= Coroutine.TRACE_HEAD + Coroutine.TRACE_TAIL + 2, "trace has " + lines + " lines" );
+
+		//The thread has to be usable after recovering
+		proto = LuaClosure.compile("return 1 + 1", "after");
+
+		Object result = thread.call( new LuaClosure(proto, platform.getEnv()) );
+		check( Double.valueOf(2).equals(result), "thread broken after recovering" );
+
+		System.out.println("DeepRecursionTest passed, trace of " + trace.length() + " characters");
+	}
+
+	protected static void check( boolean condition, String message ){
+		if ( !condition )
+			throw new AssertionError(message);
+	}
+
+}